@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates the bucket boundaries of a latency distribution and estimates the percentile error
+ * they cause.
+ *
+ * <p>Boundaries grow exponentially from a minimum by a growth factor, are rounded to a resolution
+ * and stop at a maximum value or bucket count. A smaller growth factor gives more accurate
+ * percentiles at the cost of more buckets to export. The layout is written as a comma separated
+ * list of KEY:VALUE pairs, for example "growth:1.1,min:0.5,max:10000,count:150". Keys that are
+ * left out keep their default values, which give the original octail/latency boundaries.
+ */
+final class BucketLayout {
+  /** Exponential with growth factor of 1.25, rounded to nearest 1 ms. */
+  static final BucketLayout DEFAULT = new BucketLayout(1.25, 1.0, 60000.0, 200, 1.0);
+  /** Exponential with growth factor of 1.25 from 10 microseconds, for sub-millisecond times. */
+  static final BucketLayout FINE = new BucketLayout(1.25, 0.01, 60000.0, 200, 0.001);
+
+  private final double growth;
+  private final double min;
+  private final double max;
+  private final int maxCount;
+  private final double resolution;
+
+  BucketLayout(double growth, double min, double max, int maxCount, double resolution) {
+    if (growth <= 1.0) {
+      throw new IllegalArgumentException("Bucket growth factor must be greater than 1");
+    }
+    if (min <= 0 || max < min) {
+      throw new IllegalArgumentException("Bucket minimum must be positive and below the maximum");
+    }
+    if (maxCount < 1 || resolution < 0) {
+      throw new IllegalArgumentException(
+          "Bucket count must be positive and resolution must not be negative");
+    }
+    this.growth = growth;
+    this.min = min;
+    this.max = max;
+    this.maxCount = maxCount;
+    this.resolution = resolution;
+  }
+
+  /**
+   * Parses a bucket layout.
+   *
+   * @param spec KEY:VALUE pairs with the keys growth, min, max, count and resolution
+   * @throws IllegalArgumentException If the spec cannot be parsed
+   */
+  static BucketLayout parse(String spec) throws IllegalArgumentException {
+    double growth = DEFAULT.growth;
+    double min = DEFAULT.min;
+    double max = DEFAULT.max;
+    int maxCount = DEFAULT.maxCount;
+    double resolution = DEFAULT.resolution;
+    for (String pair : spec.split(",")) {
+      String[] parts = pair.split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Bucket layout must be KEY:VALUE pairs, got " + pair);
+      }
+      try {
+        switch (parts[0]) {
+          case "growth":
+            growth = Double.parseDouble(parts[1]);
+            break;
+          case "min":
+            min = Double.parseDouble(parts[1]);
+            break;
+          case "max":
+            max = Double.parseDouble(parts[1]);
+            break;
+          case "count":
+            maxCount = Integer.parseInt(parts[1]);
+            break;
+          case "resolution":
+            resolution = Double.parseDouble(parts[1]);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown bucket layout key " + parts[0]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Number format error parsing bucket " + parts[0]);
+      }
+    }
+    return new BucketLayout(growth, min, max, maxCount, resolution);
+  }
+
+  /**
+   * Generates the bucket boundaries. Boundaries that round to the same value are only included
+   * once.
+   *
+   * @return The boundaries in increasing order
+   */
+  List<Double> boundaries() {
+    List<Double> boundaries = new ArrayList<>();
+    double previous = 0;
+    for (double bound = min; bound <= max && boundaries.size() < maxCount; bound *= growth) {
+      double rounded = round(bound);
+      if (rounded > previous) {
+        boundaries.add(rounded);
+        previous = rounded;
+      }
+    }
+    return Collections.unmodifiableList(boundaries);
+  }
+
+  // Rounds to the resolution, dividing by whole numbers where possible to avoid values like
+  // 0.5700000000000001.
+  private double round(double bound) {
+    if (resolution == 0) {
+      return bound;
+    }
+    long steps = Math.round(bound / resolution);
+    return resolution < 1 ? steps / Math.rint(1 / resolution) : steps * resolution;
+  }
+
+  /**
+   * Counts the values of a histogram in the buckets of this layout. The first count is below the
+   * first boundary and the last is at or above the last boundary, as in an OpenCensus
+   * distribution.
+   *
+   * @param histogram The recorded values
+   * @return The bucket counts, one more than the number of boundaries
+   */
+  long[] bucketCounts(LatencyHistogram histogram) {
+    List<Double> boundaries = boundaries();
+    long[] counts = new long[boundaries.size() + 1];
+    histogram.forEachBucket(
+        (valueMillis, count) -> {
+          int index = Collections.binarySearch(boundaries, valueMillis);
+          counts[index >= 0 ? index + 1 : -index - 1] += count;
+        });
+    return counts;
+  }
+
+  /**
+   * Estimates a percentile from bucket counts, interpolating linearly within the bucket that holds
+   * the percentile's rank. This is the find_percentile estimate in tail_latency_lab.ipynb.
+   *
+   * @param percentile The percentile, between 0 and 100
+   * @param boundaries The bucket boundaries
+   * @param counts The bucket counts, one more than the number of boundaries
+   * @param maxMillis The largest value, used as the upper edge of the overflow bucket
+   * @return The estimated value, or 0 if there are no values
+   */
+  static double findPercentile(
+      double percentile, List<Double> boundaries, long[] counts, double maxMillis) {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    double rank = total * percentile / 100.0;
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0 || cumulative + counts[i] < rank) {
+        cumulative += counts[i];
+        continue;
+      }
+      double lower = i == 0 ? 0 : boundaries.get(i - 1);
+      double upper = i < boundaries.size() ? boundaries.get(i) : Math.max(lower, maxMillis);
+      return lower + (upper - lower) * (rank - cumulative) / counts[i];
+    }
+    return maxMillis;
+  }
+
+  /**
+   * Gets the errors of percentiles estimated from this layout's buckets, relative to the values
+   * from the local histogram.
+   *
+   * @param histogram The recorded values
+   * @param percentiles The percentiles, between 0 and 100
+   * @return The absolute relative error of each percentile, 0 if the histogram is empty
+   */
+  double[] percentileErrors(LatencyHistogram histogram, double[] percentiles) {
+    List<Double> boundaries = boundaries();
+    long[] counts = bucketCounts(histogram);
+    double[] errors = new double[percentiles.length];
+    for (int i = 0; i < percentiles.length; i++) {
+      double exact = histogram.percentile(percentiles[i]);
+      if (exact > 0) {
+        double estimate = findPercentile(percentiles[i], boundaries, counts, histogram.max());
+        errors[i] = Math.abs(estimate - exact) / exact;
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public String toString() {
+    return "growth:"
+        + growth
+        + ",min:"
+        + min
+        + ",max:"
+        + max
+        + ",count:"
+        + maxCount
+        + ",resolution:"
+        + resolution;
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Finds the highest request rate that meets a latency and error rate SLO.
+ *
+ * <p>Each step offers a fixed request rate for a fixed time. Requests are scheduled open loop at
+ * even intervals and their latency is measured from the scheduled time, so that a backlog in the
+ * client shows up as latency rather than as a lower offered rate. The rate doubles from the start
+ * rate until a step misses the SLO or the client cannot sustain the offered rate, then a binary
+ * search between the last passing and the first failing rate narrows the limit down to the search
+ * precision.
+ *
+ * <p>The sender pool of each step is sized for the concurrency the offered rate needs when every
+ * request takes as long as the latency SLO, or the HTTP timeout if that is longer, so that the
+ * client does not queue requests it could be sending. Each step records the longest delay between
+ * the scheduled time of a request and the start of its send. A step where that delay is a large
+ * part of the latency SLO is marked as client bound, since the latency was spent in the client.
+ */
+class CapacitySearch {
+  private static final Logger LOGGER = Logger.getLogger(CapacitySearch.class.getName());
+  private static final long MIN_DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10);
+  // A rate is only sustained if this fraction of it completes within the step and drain time.
+  private static final double MIN_ACHIEVED_FRACTION = 0.9;
+  // Upper limit on the number of sender threads in a step
+  private static final int MAX_SENDERS = 1024;
+  // A step is client bound if a send started this fraction of the latency SLO late
+  private static final double CLIENT_BOUND_LAG_FRACTION = 0.1;
+  /** Exit status when even the start rate misses the SLO */
+  static final int SLO_MISSED_EXIT_STATUS = 3;
+
+  /** Sends a single request, throwing an exception if it failed */
+  interface RequestSender {
+    void send(long index) throws Exception;
+  }
+
+  /** The result of offering one request rate */
+  static class Step {
+    final double offeredRate;
+    final double achievedRate;
+    final double p50Ms;
+    final double p99Ms;
+    final double errorRate;
+    final boolean meetsSlo;
+    final double clientLagMs;
+    final boolean clientBound;
+
+    Step(
+        double offeredRate,
+        double achievedRate,
+        double p50Ms,
+        double p99Ms,
+        double errorRate,
+        boolean meetsSlo,
+        double clientLagMs,
+        boolean clientBound) {
+      this.offeredRate = offeredRate;
+      this.achievedRate = achievedRate;
+      this.p50Ms = p50Ms;
+      this.p99Ms = p99Ms;
+      this.errorRate = errorRate;
+      this.meetsSlo = meetsSlo;
+      this.clientLagMs = clientLagMs;
+      this.clientBound = clientBound;
+    }
+
+    JSONObject toJson() {
+      JSONObject step = new JSONObject();
+      step.put("offered_rps", offeredRate);
+      step.put("achieved_rps", achievedRate);
+      step.put("p50_ms", p50Ms);
+      step.put("p99_ms", p99Ms);
+      step.put("error_rate", errorRate);
+      step.put("meets_slo", meetsSlo);
+      step.put("client_lag_ms", clientLagMs);
+      step.put("client_bound", clientBound);
+      return step;
+    }
+  }
+
+  private final TestOptions testOptions;
+  private final RequestSender sender;
+  private final List<Step> curve = new ArrayList<>();
+  private double maxRate;
+
+  CapacitySearch(TestOptions testOptions, RequestSender sender) {
+    this.testOptions = testOptions;
+    this.sender = sender;
+  }
+
+  /**
+   * Runs the search.
+   *
+   * @return The highest request rate that met the SLO, 0 if even the start rate missed it
+   */
+  double run() throws InterruptedException {
+    double lastGood = 0;
+    double firstBad = Double.MAX_VALUE;
+    for (double rate = testOptions.startRate(); rate <= testOptions.maxRate(); rate *= 2) {
+      if (runStep(rate).meetsSlo) {
+        lastGood = rate;
+      } else {
+        firstBad = rate;
+        break;
+      }
+    }
+    if (lastGood == 0) {
+      // Searching below the start rate would halve the rate forever
+      LOGGER.info("Missed the SLO at the start rate " + testOptions.startRate());
+    } else if (firstBad == Double.MAX_VALUE) {
+      LOGGER.info("Met the SLO up to the maximum rate " + testOptions.maxRate());
+    } else {
+      while (firstBad - lastGood > testOptions.searchPrecision() * firstBad) {
+        double rate = (lastGood + firstBad) / 2.0;
+        if (runStep(rate).meetsSlo) {
+          lastGood = rate;
+        } else {
+          firstBad = rate;
+        }
+      }
+    }
+    maxRate = lastGood;
+    LOGGER.info("Highest rate meeting the SLO: " + maxRate + " requests/s");
+    return maxRate;
+  }
+
+  // Offers a request rate for one step, recording the result in the curve.
+  Step runStep(double rate) throws InterruptedException {
+    LatencyHistogram latencies = new LatencyHistogram();
+    LongAccumulator maxLagNanos = new LongAccumulator(Math::max, 0);
+    ExecutorService pool = Executors.newFixedThreadPool(senders(rate));
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long stepNanos = TimeUnit.SECONDS.toNanos(testOptions.stepSeconds());
+    long startNanos = System.nanoTime();
+    long issued = 0;
+    for (long scheduled = startNanos;
+        scheduled < startNanos + stepNanos;
+        scheduled += intervalNanos) {
+      long waitNanos = scheduled - System.nanoTime();
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+      long scheduledNanos = scheduled;
+      long index = issued++;
+      pool.execute(
+          () -> {
+            maxLagNanos.accumulate(System.nanoTime() - scheduledNanos);
+            try {
+              sender.send(index);
+              latencies.record((System.nanoTime() - scheduledNanos) / 1.0e6);
+            } catch (Exception e) {
+              // A failed request records no latency, so it counts against the error rate
+              LOGGER.log(Level.FINE, "Request failed " + e.getMessage());
+            }
+          });
+    }
+    pool.shutdown();
+    if (!pool.awaitTermination(Math.max(MIN_DRAIN_NANOS, stepNanos), TimeUnit.NANOSECONDS)) {
+      pool.shutdownNow();
+    }
+    double seconds = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    long completed = latencies.count();
+    // Failed requests, and requests still outstanding after the drain, count as errors
+    double errorRate = issued == 0 ? 0 : (issued - completed) / (double) issued;
+    double p99Ms = latencies.percentile(99.0);
+    double achievedRate = completed / seconds;
+    boolean meetsSlo =
+        p99Ms <= testOptions.sloP99Ms()
+            && errorRate <= testOptions.sloErrorRate()
+            && achievedRate >= MIN_ACHIEVED_FRACTION * rate;
+    double clientLagMs = maxLagNanos.get() / 1.0e6;
+    boolean clientBound = clientLagMs > CLIENT_BOUND_LAG_FRACTION * testOptions.sloP99Ms();
+    Step step =
+        new Step(
+            rate,
+            achievedRate,
+            latencies.percentile(50.0),
+            p99Ms,
+            errorRate,
+            meetsSlo,
+            clientLagMs,
+            clientBound);
+    curve.add(step);
+    LOGGER.info(
+        "Offered "
+            + rate
+            + " requests/s: achieved "
+            + achievedRate
+            + ", p99 "
+            + p99Ms
+            + " ms, errors "
+            + errorRate
+            + (meetsSlo ? ", meets SLO" : ", misses SLO")
+            + (clientBound ? ", client bound with lag " + clientLagMs + " ms" : ""));
+    return step;
+  }
+
+  // The number of sender threads needed for a rate if each request takes as long as the SLO or
+  // the HTTP timeout, whichever is longer, and at least the number of threads configured.
+  int senders(double rate) {
+    double maxLatencyMs = Math.max(testOptions.sloP99Ms(), testOptions.httpTimeout());
+    int needed = (int) Math.ceil(rate * maxLatencyMs / 1000.0);
+    return Math.min(MAX_SENDERS, Math.max(testOptions.nThreads(), needed));
+  }
+
+  /** @return The result of the search and the latency curve as JSON */
+  JSONObject toJson() {
+    JSONObject slo = new JSONObject();
+    slo.put("p99_ms", testOptions.sloP99Ms());
+    slo.put("error_rate", testOptions.sloErrorRate());
+    JSONArray steps = new JSONArray();
+    for (Step step : curve) {
+      steps.put(step.toJson());
+    }
+    JSONObject config = new JSONObject();
+    config.put("targetURL", testOptions.targetURL());
+    config.put("nThreads", testOptions.nThreads());
+    config.put("httpTimeout", testOptions.httpTimeout());
+    config.put("stepSeconds", testOptions.stepSeconds());
+    config.put("startRate", testOptions.startRate());
+    config.put("maxRate", testOptions.maxRate());
+    config.put("searchPrecision", testOptions.searchPrecision());
+    config.put("cpuWork", testOptions.cpuWork().toString());
+    config.put("processing", testOptions.processing().toString());
+
+    JSONObject result = new JSONObject();
+    result.put("max_rate_rps", maxRate);
+    result.put("slo", slo);
+    result.put("curve", steps);
+    result.put("config", config);
+    return result;
+  }
+}
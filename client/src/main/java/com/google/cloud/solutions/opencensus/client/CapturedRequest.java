@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import com.google.auto.value.AutoValue;
+
+/** A single request read from or written to a traffic capture */
+@AutoValue
+abstract class CapturedRequest {
+
+  static CapturedRequest create(
+      long timestampMicros, String method, int payloadSize, String source) {
+    return new AutoValue_CapturedRequest(timestampMicros, method, payloadSize, source);
+  }
+
+  /** @return The time the request was sent or received, in microseconds since the epoch */
+  abstract long timestampMicros();
+
+  /** @return The HTTP method */
+  abstract String method();
+
+  /** @return The size of the request payload in bytes */
+  abstract int payloadSize();
+
+  /** @return The thread or remote address that sent the request */
+  abstract String source();
+}
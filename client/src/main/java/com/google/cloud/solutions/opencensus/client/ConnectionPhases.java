@@ -0,0 +1,325 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.Measure.MeasureDouble;
+import io.opencensus.stats.MeasureMap;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.StatsRecorder;
+import io.opencensus.stats.View;
+import io.opencensus.stats.View.Name;
+import io.opencensus.stats.ViewManager;
+import io.opencensus.tags.TagContext;
+import io.opencensus.tags.TagKey;
+import io.opencensus.tags.TagValue;
+import io.opencensus.tags.Tagger;
+import io.opencensus.tags.Tags;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.BlankSpan;
+import io.opencensus.trace.Span;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.SocketAddressResolver;
+
+/**
+ * Records the phases of each HTTP request made by a Jetty client.
+ *
+ * <p>Each request is split into the time waiting in the destination queue for a pooled connection,
+ * the time sending the request, the time from the request being sent to the first byte of the
+ * response, and the time reading the response body. The time to open a new connection, from the
+ * end of address resolution to the connection being opened, is recorded separately because it is
+ * not tied to a single request. A long pool wait with a short connect time points at pool
+ * exhaustion, while a long time to first byte points at a slow server.
+ */
+class ConnectionPhases {
+  private static final TagKey KEY_METHOD = TagKey.create("method");
+  private static final TagKey KEY_DESTINATION = TagKey.create("destination");
+  private static final MeasureDouble M_POOL_WAIT_MS =
+      MeasureDouble.create(
+          "test_client/pool_wait", "Time a request waited for a pooled connection", "ms");
+  private static final MeasureDouble M_CONNECT_MS =
+      MeasureDouble.create("test_client/connect", "Time to open a new connection", "ms");
+  private static final MeasureDouble M_SEND_MS =
+      MeasureDouble.create("test_client/send", "Time to send the request", "ms");
+  private static final MeasureDouble M_FIRST_BYTE_MS =
+      MeasureDouble.create(
+          "test_client/first_byte", "Time from sending the request to the response", "ms");
+  private static final MeasureDouble M_READ_BODY_MS =
+      MeasureDouble.create("test_client/read_body", "Time to read the response body", "ms");
+  // Address resolutions waiting for their connection are dropped after this time
+  private static final long PENDING_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+  // Marks an event that has not happened, since System.nanoTime() may return any value, even 0
+  private static final long UNSET = Long.MIN_VALUE;
+  private static final Tagger tagger = Tags.getTagger();
+  private static final StatsRecorder statsRecorder = Stats.getStatsRecorder();
+
+  // Connections being opened, by resolved address, in the order their addresses were resolved.
+  private static final Map<InetSocketAddress, Queue<PendingConnect>> pending =
+      new ConcurrentHashMap<>();
+
+  private static class PendingConnect {
+    final long resolvedNanos;
+    final String destination;
+
+    PendingConnect(long resolvedNanos, String destination) {
+      this.resolvedNanos = resolvedNanos;
+      this.destination = destination;
+    }
+  }
+
+  // Times of the events of a single request, set from Jetty's threads.
+  private static class Timing {
+    final String method;
+    final String destination;
+    final Span span;
+    volatile long queued = UNSET;
+    volatile long begin = UNSET;
+    volatile long sent = UNSET;
+    volatile long responseBegin = UNSET;
+
+    Timing(String method, String destination, Span span) {
+      this.method = method;
+      this.destination = destination;
+      this.span = span;
+    }
+  }
+
+  /**
+   * Registers the views of the phases.
+   *
+   * @param latencyDist The distribution used for the phase times
+   */
+  static void registerViews(Aggregation latencyDist) {
+    List<TagKey> requestColumns =
+        Collections.unmodifiableList(Arrays.asList(KEY_METHOD, KEY_DESTINATION));
+    List<TagKey> destinationColumns = Collections.singletonList(KEY_DESTINATION);
+    View[] views =
+        new View[] {
+          View.create(
+              Name.create("octail/pool_wait_time"),
+              "Distribution of time waiting for a pooled connection",
+              M_POOL_WAIT_MS,
+              latencyDist,
+              requestColumns),
+          View.create(
+              Name.create("octail/connect_time"),
+              "Distribution of time to open a new connection",
+              M_CONNECT_MS,
+              latencyDist,
+              destinationColumns),
+          View.create(
+              Name.create("octail/send_time"),
+              "Distribution of time to send the request",
+              M_SEND_MS,
+              latencyDist,
+              requestColumns),
+          View.create(
+              Name.create("octail/first_byte_time"),
+              "Distribution of time from sending the request to the response",
+              M_FIRST_BYTE_MS,
+              latencyDist,
+              requestColumns),
+          View.create(
+              Name.create("octail/read_body_time"),
+              "Distribution of time to read the response body",
+              M_READ_BODY_MS,
+              latencyDist,
+              requestColumns)
+        };
+    ViewManager vmgr = Stats.getViewManager();
+    for (View view : views) {
+      vmgr.registerView(view);
+    }
+  }
+
+  /**
+   * Hooks the connection events of a client to record connect times. Call this before the client
+   * is started, so the hooks are in place for its first connection.
+   *
+   * <p>Jetty creates its default resolver when the client starts, so if none is configured the
+   * same asynchronous resolver is created on first use from the started client's executor and
+   * scheduler.
+   *
+   * @param httpClient The client, not yet started
+   */
+  static void install(HttpClient httpClient) {
+    AtomicReference<SocketAddressResolver> delegate =
+        new AtomicReference<>(httpClient.getSocketAddressResolver());
+    httpClient.setSocketAddressResolver(
+        (host, port, promise) ->
+            resolver(httpClient, delegate)
+                .resolve(
+                    host,
+                    port,
+                    new Promise<List<InetSocketAddress>>() {
+                      @Override
+                      public void succeeded(List<InetSocketAddress> addresses) {
+                        if (!addresses.isEmpty()) {
+                          addPending(addresses.get(0), host + ":" + port);
+                        }
+                        promise.succeeded(addresses);
+                      }
+
+                      @Override
+                      public void failed(Throwable failure) {
+                        promise.failed(failure);
+                      }
+                    }));
+    httpClient.addBean(
+        new Connection.Listener.Adapter() {
+          @Override
+          public void onOpened(Connection connection) {
+            recordConnect(connection.getEndPoint().getRemoteAddress());
+          }
+        });
+  }
+
+  // Returns the resolver to delegate to, creating Jetty's default one on first use if none was set.
+  private static SocketAddressResolver resolver(
+      HttpClient httpClient, AtomicReference<SocketAddressResolver> delegate) {
+    SocketAddressResolver resolver = delegate.get();
+    if (resolver == null) {
+      delegate.compareAndSet(
+          null,
+          new SocketAddressResolver.Async(
+              httpClient.getExecutor(),
+              httpClient.getScheduler(),
+              httpClient.getAddressResolutionTimeout()));
+      resolver = delegate.get();
+    }
+    return resolver;
+  }
+
+  private static void addPending(InetSocketAddress address, String destination) {
+    long now = System.nanoTime();
+    Queue<PendingConnect> queue =
+        pending.computeIfAbsent(address, a -> new ConcurrentLinkedQueue<>());
+    // Connections that failed to open never remove their entry
+    queue.removeIf(p -> now - p.resolvedNanos > PENDING_TIMEOUT_NANOS);
+    queue.add(new PendingConnect(now, destination));
+  }
+
+  // Returns the number of connections being opened to an address, for tests.
+  static int pendingConnects(InetSocketAddress address) {
+    Queue<PendingConnect> queue = pending.get(address);
+    return queue == null ? 0 : queue.size();
+  }
+
+  private static void recordConnect(InetSocketAddress address) {
+    Queue<PendingConnect> queue = address == null ? null : pending.get(address);
+    PendingConnect connect = queue == null ? null : queue.poll();
+    if (connect == null) {
+      return;
+    }
+    TagContext tags =
+        tagger.emptyBuilder().put(KEY_DESTINATION, TagValue.create(connect.destination)).build();
+    statsRecorder
+        .newMeasureMap()
+        .put(M_CONNECT_MS, toMillis(System.nanoTime() - connect.resolvedNanos))
+        .record(tags);
+  }
+
+  /**
+   * Adds listeners to a request that record its phases when it completes.
+   *
+   * @param request The request, before it is sent
+   * @param span The span to annotate with the phases, or BlankSpan.INSTANCE for none
+   */
+  static void instrument(Request request, Span span) {
+    Timing timing =
+        new Timing(request.getMethod(), request.getHost() + ":" + request.getPort(), span);
+    request.listener(
+        new Request.Listener.Adapter() {
+          @Override
+          public void onQueued(Request r) {
+            timing.queued = System.nanoTime();
+          }
+
+          @Override
+          public void onBegin(Request r) {
+            timing.begin = System.nanoTime();
+          }
+
+          @Override
+          public void onSuccess(Request r) {
+            timing.sent = System.nanoTime();
+          }
+        });
+    request.onResponseBegin(response -> timing.responseBegin = System.nanoTime());
+    request.onComplete(result -> record(timing, result.isFailed() ? UNSET : System.nanoTime()));
+  }
+
+  // Records the phases that both started and ended.
+  private static void record(Timing timing, long complete) {
+    TagContext tags =
+        tagger
+            .emptyBuilder()
+            .put(KEY_METHOD, TagValue.create(timing.method))
+            .put(KEY_DESTINATION, TagValue.create(timing.destination))
+            .build();
+    MeasureMap measureMap = statsRecorder.newMeasureMap();
+    Map<String, AttributeValue> attributes = new HashMap<>();
+    putPhase(measureMap, attributes, M_POOL_WAIT_MS, "pool_wait_ms", timing.queued, timing.begin);
+    putPhase(measureMap, attributes, M_SEND_MS, "send_ms", timing.begin, timing.sent);
+    putPhase(
+        measureMap,
+        attributes,
+        M_FIRST_BYTE_MS,
+        "first_byte_ms",
+        timing.sent,
+        timing.responseBegin);
+    putPhase(
+        measureMap, attributes, M_READ_BODY_MS, "read_body_ms", timing.responseBegin, complete);
+    measureMap.record(tags);
+    if (timing.span != BlankSpan.INSTANCE && !attributes.isEmpty()) {
+      timing.span.addAnnotation("Connection phases", attributes);
+    }
+  }
+
+  private static void putPhase(
+      MeasureMap measureMap,
+      Map<String, AttributeValue> attributes,
+      MeasureDouble measure,
+      String name,
+      long start,
+      long end) {
+    if (start == UNSET || end == UNSET) {
+      return;
+    }
+    double millis = toMillis(Math.max(0, end - start));
+    measureMap.put(measure, millis);
+    attributes.put(name, AttributeValue.doubleAttributeValue(millis));
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1.0e6;
+  }
+}
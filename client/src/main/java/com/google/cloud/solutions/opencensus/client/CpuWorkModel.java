@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates CPU bound work in the downstream processing step.
+ *
+ * <p>The work is measured in thread CPU time rather than wall clock time so that a thread waiting
+ * for a scheduler slot does not count as having done work. The model is written as MODE:MICROS,
+ * for example "element:2" for 2 microseconds per payload element or "request:500" for 500
+ * microseconds per request.
+ */
+final class CpuWorkModel {
+  static final CpuWorkModel NONE = new CpuWorkModel(Mode.NONE, 0);
+  // How many iterations of the busy loop to run between checks of the clock
+  private static final int CHECK_INTERVAL = 1000;
+  private static volatile long sink;
+
+  /** How the amount of work scales */
+  enum Mode {
+    NONE,
+    PER_ELEMENT,
+    PER_REQUEST
+  }
+
+  private final Mode mode;
+  private final long micros;
+
+  private CpuWorkModel(Mode mode, long micros) {
+    this.mode = mode;
+    this.micros = micros;
+  }
+
+  /**
+   * Parses a CPU work model.
+   *
+   * @param spec The model as none, element:MICROS or request:MICROS
+   * @throws IllegalArgumentException If the spec cannot be parsed
+   */
+  static CpuWorkModel parse(String spec) throws IllegalArgumentException {
+    if (spec.equals("none")) {
+      return NONE;
+    }
+    String[] parts = spec.split(":");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("CPU work model must be MODE:MICROS, got " + spec);
+    }
+    long micros;
+    try {
+      micros = Long.parseLong(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Number format error parsing CPU work " + parts[1]);
+    }
+    if (micros < 0) {
+      throw new IllegalArgumentException("CPU work must not be negative");
+    }
+    switch (parts[0]) {
+      case "element":
+        return new CpuWorkModel(Mode.PER_ELEMENT, micros);
+      case "request":
+        return new CpuWorkModel(Mode.PER_REQUEST, micros);
+      default:
+        throw new IllegalArgumentException("Unknown CPU work mode " + parts[0]);
+    }
+  }
+
+  /** @return How the amount of work scales */
+  Mode mode() {
+    return mode;
+  }
+
+  /** @return Microseconds of CPU work per element or per request */
+  long micros() {
+    return micros;
+  }
+
+  /**
+   * Gets the amount of CPU work for a payload.
+   *
+   * @param elements The number of elements in the payload
+   * @return The CPU work in nanoseconds
+   */
+  long workNanos(int elements) {
+    switch (mode) {
+      case PER_ELEMENT:
+        return TimeUnit.MICROSECONDS.toNanos(micros * elements);
+      case PER_REQUEST:
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Burns CPU on the calling thread for the amount of work the model gives for a payload.
+   *
+   * @param elements The number of elements in the payload
+   */
+  void apply(int elements) {
+    long workNanos = workNanos(elements);
+    if (workNanos <= 0) {
+      return;
+    }
+    boolean useCpuTime = TestInstrumentation.currentThreadCpuNanos() >= 0;
+    long start = useCpuTime ? TestInstrumentation.currentThreadCpuNanos() : System.nanoTime();
+    long x = start;
+    long elapsed = 0;
+    while (elapsed < workNanos) {
+      for (int i = 0; i < CHECK_INTERVAL; i++) {
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+      }
+      long now = useCpuTime ? TestInstrumentation.currentThreadCpuNanos() : System.nanoTime();
+      elapsed = now - start;
+    }
+    sink = x;
+  }
+
+  @Override
+  public String toString() {
+    switch (mode) {
+      case PER_ELEMENT:
+        return "element:" + micros;
+      case PER_REQUEST:
+        return "request:" + micros;
+      default:
+        return "none";
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import io.opencensus.metrics.DerivedLongGauge;
+import io.opencensus.metrics.LabelKey;
+import io.opencensus.metrics.LabelValue;
+import io.opencensus.metrics.MetricOptions;
+import io.opencensus.metrics.Metrics;
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.Aggregation.Distribution;
+import io.opencensus.stats.Aggregation.Sum;
+import io.opencensus.stats.BucketBoundaries;
+import io.opencensus.stats.Measure.MeasureDouble;
+import io.opencensus.stats.Measure.MeasureLong;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.StatsRecorder;
+import io.opencensus.stats.View;
+import io.opencensus.stats.View.Name;
+import io.opencensus.stats.ViewManager;
+import io.opencensus.tags.TagContext;
+import io.opencensus.tags.TagKey;
+import io.opencensus.tags.TagValue;
+import io.opencensus.tags.Tags;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded, non-blocking stage between an OpenCensus handler and an exporter.
+ *
+ * <p>Items are added to a lock-free queue without blocking the caller. When the queue is full the
+ * oldest or the newest item is dropped. A daemon thread at minimum priority takes items off the
+ * queue in batches, sending a batch when it is full or when the oldest item in it has waited for
+ * the batch delay, so a slow exporter does not compete with request threads or grow memory
+ * without limit. The time taken to export each batch and the number of dropped items are recorded
+ * in the octail/export_* views, tagged with the pipeline name. The queue depth is a derived gauge,
+ * octail/export_queue_depth, read each time metrics are exported, so it still moves while the
+ * exporter is stalled.
+ *
+ * @param <T> The type of the items exported
+ */
+class ExportPipeline<T> {
+  private static final Logger LOGGER = Logger.getLogger(ExportPipeline.class.getName());
+  private static final TagKey KEY_PIPELINE = TagKey.create("pipeline");
+  private static final MeasureDouble M_BATCH_LATENCY_MS =
+      MeasureDouble.create(
+          "test_client/export_batch_latency", "Time taken to export a batch", "ms");
+  private static final MeasureLong M_DROPS =
+      MeasureLong.create(
+          "test_client/export_drops", "Items dropped because the export queue was full", "1");
+  private static final StatsRecorder statsRecorder = Stats.getStatsRecorder();
+  // Read whenever metrics are exported, so the depth keeps up while an export is stalled
+  private static final DerivedLongGauge QUEUE_DEPTH =
+      Metrics.getMetricRegistry()
+          .addDerivedLongGauge(
+              "octail/export_queue_depth",
+              MetricOptions.builder()
+                  .setDescription("Items waiting in the export queue")
+                  .setUnit("1")
+                  .setLabelKeys(
+                      Collections.singletonList(
+                          LabelKey.create(KEY_PIPELINE.getName(), "Export pipeline")))
+                  .build());
+  // The pipeline whose depth each time series reads, by name. The gauge only keeps a weak
+  // reference to the depth, so a closed pipeline removes its time series before it is collected.
+  private static final Map<String, ExportPipeline<?>> gaugeOwners = new ConcurrentHashMap<>();
+
+  /** Which item is dropped when the queue is full */
+  enum DropPolicy {
+    /** Drop the item that has waited longest, keeping the most recent data */
+    OLDEST,
+    /** Drop the item being added, keeping the queue as it is */
+    NEWEST
+  }
+
+  /**
+   * Sizes and policy of a pipeline. The settings are written as a comma separated list of
+   * KEY:VALUE pairs with the keys queue, batch, delay (ms) and drop (oldest or newest), for example
+   * "queue:4096,drop:newest". Keys that are left out keep their default values.
+   */
+  static final class Settings {
+    static final Settings DEFAULT = new Settings(2048, 128, 2000, DropPolicy.OLDEST);
+
+    final int capacity;
+    final int batchSize;
+    final long batchDelayMillis;
+    final DropPolicy dropPolicy;
+
+    Settings(int capacity, int batchSize, long batchDelayMillis, DropPolicy dropPolicy) {
+      if (capacity < 1 || batchSize < 1 || batchDelayMillis < 1) {
+        throw new IllegalArgumentException("Export queue, batch and delay must be positive");
+      }
+      this.capacity = capacity;
+      this.batchSize = batchSize;
+      this.batchDelayMillis = batchDelayMillis;
+      this.dropPolicy = dropPolicy;
+    }
+
+    /**
+     * Parses pipeline settings.
+     *
+     * @param spec KEY:VALUE pairs with the keys queue, batch, delay and drop
+     * @throws IllegalArgumentException If the spec cannot be parsed
+     */
+    static Settings parse(String spec) throws IllegalArgumentException {
+      int capacity = DEFAULT.capacity;
+      int batchSize = DEFAULT.batchSize;
+      long batchDelayMillis = DEFAULT.batchDelayMillis;
+      DropPolicy dropPolicy = DEFAULT.dropPolicy;
+      for (String pair : spec.split(",")) {
+        String[] parts = pair.split(":");
+        if (parts.length != 2) {
+          throw new IllegalArgumentException(
+              "Export settings must be KEY:VALUE pairs, got " + pair);
+        }
+        try {
+          switch (parts[0]) {
+            case "queue":
+              capacity = Integer.parseInt(parts[1]);
+              break;
+            case "batch":
+              batchSize = Integer.parseInt(parts[1]);
+              break;
+            case "delay":
+              batchDelayMillis = Long.parseLong(parts[1]);
+              break;
+            case "drop":
+              dropPolicy = DropPolicy.valueOf(parts[1].toUpperCase(Locale.ROOT));
+              break;
+            default:
+              throw new IllegalArgumentException("Unknown export setting " + parts[0]);
+          }
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Number format error parsing export " + parts[0]);
+        }
+      }
+      return new Settings(capacity, batchSize, batchDelayMillis, dropPolicy);
+    }
+
+    @Override
+    public String toString() {
+      return "queue:"
+          + capacity
+          + ",batch:"
+          + batchSize
+          + ",delay:"
+          + batchDelayMillis
+          + ",drop:"
+          + dropPolicy.toString().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  private final String name;
+  private final List<LabelValue> labels;
+  private final Settings settings;
+  private final Consumer<List<T>> sink;
+  private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+  // ConcurrentLinkedQueue.size() walks the queue, so the depth is counted separately
+  private final AtomicInteger depth = new AtomicInteger();
+  private final TagContext tags;
+  private final Thread thread;
+  private volatile boolean closed;
+
+  /**
+   * Creates a pipeline and starts its export thread.
+   *
+   * @param name The name of the pipeline, used as the pipeline tag
+   * @param settings The queue and batch sizes and the drop policy
+   * @param sink Exports a batch of items, called only from the export thread
+   */
+  ExportPipeline(String name, Settings settings, Consumer<List<T>> sink) {
+    this.name = name;
+    this.settings = settings;
+    this.sink = sink;
+    this.tags = Tags.getTagger().emptyBuilder().put(KEY_PIPELINE, TagValue.create(name)).build();
+    this.labels = Collections.singletonList(LabelValue.create(name));
+    // A pipeline created with the name of an earlier one takes over its time series
+    gaugeOwners.put(name, this);
+    QUEUE_DEPTH.removeTimeSeries(labels);
+    QUEUE_DEPTH.createTimeSeries(labels, depth, AtomicInteger::get);
+    this.thread = new Thread(this::run, "export-" + name);
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /** Registers the views of the export pipeline metrics */
+  static void registerViews() {
+    List<TagKey> columns = Collections.unmodifiableList(Arrays.asList(KEY_PIPELINE));
+    // Exponential with growth factor of 2, from 0.1 ms to about 14 minutes.
+    Aggregation latencyDist =
+        Distribution.create(
+            BucketBoundaries.create(new BucketLayout(2.0, 0.1, 1.0e6, 24, 0.1).boundaries()));
+    View[] views =
+        new View[] {
+          View.create(
+              Name.create("octail/export_batch_latency"),
+              "Distribution of the time taken to export a batch",
+              M_BATCH_LATENCY_MS,
+              latencyDist,
+              columns),
+          View.create(
+              Name.create("octail/export_drops"),
+              "Items dropped because the export queue was full",
+              M_DROPS,
+              Sum.create(),
+              columns)
+        };
+    ViewManager vmgr = Stats.getViewManager();
+    for (View view : views) {
+      vmgr.registerView(view);
+    }
+  }
+
+  /**
+   * Adds an item to the queue without blocking, dropping an item if the queue is full.
+   *
+   * @param item The item to export
+   */
+  void offer(T item) {
+    if (closed) {
+      return;
+    }
+    int size = depth.incrementAndGet();
+    if (size > settings.capacity) {
+      depth.decrementAndGet();
+      recordDrop();
+      // Items already taken for a batch cannot be dropped, so drop the new item instead
+      if (settings.dropPolicy == DropPolicy.NEWEST || queue.poll() == null) {
+        return;
+      }
+    }
+    queue.offer(item);
+    if (size == settings.batchSize) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /** @return The number of items waiting to be exported */
+  int depth() {
+    return depth.get();
+  }
+
+  /**
+   * Stops accepting items and waits for the queued items to be exported.
+   *
+   * @param timeoutMillis The longest time to wait
+   */
+  void close(long timeoutMillis) throws InterruptedException {
+    closed = true;
+    LockSupport.unpark(thread);
+    thread.join(timeoutMillis);
+    if (gaugeOwners.remove(name, this)) {
+      QUEUE_DEPTH.removeTimeSeries(labels);
+    }
+  }
+
+  private void recordDrop() {
+    statsRecorder.newMeasureMap().put(M_DROPS, 1).record(tags);
+  }
+
+  private void run() {
+    long delayNanos = TimeUnit.MILLISECONDS.toNanos(settings.batchDelayMillis);
+    List<T> batch = new ArrayList<>(settings.batchSize);
+    long deadline = 0;
+    while (!closed || !queue.isEmpty()) {
+      T item = queue.poll();
+      if (item != null) {
+        if (batch.isEmpty()) {
+          deadline = System.nanoTime() + delayNanos;
+        }
+        batch.add(item);
+        if (batch.size() < settings.batchSize) {
+          continue;
+        }
+      } else if (batch.isEmpty()) {
+        LockSupport.parkNanos(this, delayNanos);
+        continue;
+      } else {
+        long waitNanos = deadline - System.nanoTime();
+        if (waitNanos > 0 && !closed) {
+          LockSupport.parkNanos(this, waitNanos);
+          continue;
+        }
+      }
+      export(batch);
+      batch = new ArrayList<>(settings.batchSize);
+    }
+    if (!batch.isEmpty()) {
+      export(batch);
+    }
+  }
+
+  // Exports a batch from the export thread, recording the latency.
+  private void export(List<T> batch) {
+    depth.addAndGet(-batch.size());
+    long start = System.nanoTime();
+    try {
+      sink.accept(batch);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Error exporting " + name + " batch " + e.getMessage(), e);
+    }
+    double latencyMs = (System.nanoTime() - start) / 1.0e6;
+    statsRecorder.newMeasureMap().put(M_BATCH_LATENCY_MS, latencyMs).record(tags);
+  }
+}
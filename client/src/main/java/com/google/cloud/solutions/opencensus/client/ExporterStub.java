@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local stand-in for an export backend that accepts the batches posted by the http exporter.
+ *
+ * <p>Every POST is read in full, counted and answered with 200, optionally after a fixed delay to
+ * simulate a slow backend. The totals are logged at a fixed interval.
+ *
+ * <p>Usage: ExporterStub PORT [delayMs]
+ */
+public class ExporterStub {
+  private static final Logger LOGGER = Logger.getLogger(ExporterStub.class.getName());
+  private static final int LOG_INTERVAL_SECONDS = 60;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder records = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final long delayMillis;
+
+  ExporterStub(long delayMillis) {
+    this.delayMillis = delayMillis;
+  }
+
+  /**
+   * Starts the stub on a port.
+   *
+   * @param port The port to listen on, 0 for any free port
+   * @return The running server
+   */
+  HttpServer start(int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    return server;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      long lines = 0;
+      long size = 0;
+      int last = '\n';
+      byte[] buffer = new byte[8192];
+      try (InputStream in = exchange.getRequestBody()) {
+        for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+          for (int i = 0; i < n; i++) {
+            if (buffer[i] == '\n') {
+              lines++;
+            }
+          }
+          size += n;
+          last = buffer[n - 1];
+        }
+      }
+      if (last != '\n') {
+        lines++;
+      }
+      requests.increment();
+      records.add(lines);
+      bytes.add(size);
+      if (delayMillis > 0) {
+        TimeUnit.MILLISECONDS.sleep(delayMillis);
+      }
+      exchange.sendResponseHeaders(200, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exchange.sendResponseHeaders(503, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** @return The number of records received */
+  long records() {
+    return records.sum();
+  }
+
+  /** Entry point for the program on the command line */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.out.println("Usage: ExporterStub PORT [delayMs]");
+      System.exit(1);
+    }
+    try {
+      int port = Integer.parseInt(args[0]);
+      long delayMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+      ExporterStub stub = new ExporterStub(delayMillis);
+      stub.start(port);
+      LOGGER.info("Accepting exports on port " + port + " with delay " + delayMillis + " ms");
+      while (true) {
+        TimeUnit.SECONDS.sleep(LOG_INTERVAL_SECONDS);
+        LOGGER.info(
+            "Received "
+                + stub.requests.sum()
+                + " requests, "
+                + stub.records.sum()
+                + " records, "
+                + stub.bytes.sum()
+                + " bytes");
+      }
+    } catch (IOException | NumberFormatException e) {
+      LOGGER.log(Level.WARNING, "Error running exporter stub " + e.getMessage(), e);
+      System.exit(1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -18,23 +18,25 @@ package com.google.cloud.solutions.opencensus.client;
 
 import com.google.api.client.util.ExponentialBackOff;
 import io.opencensus.common.Scope;
+import io.opencensus.trace.BlankSpan;
 import io.opencensus.trace.Tracer;
 import io.opencensus.trace.Tracing;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.lang3.time.StopWatch;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpRequest;
 import org.eclipse.jetty.client.api.ContentProvider;
@@ -42,6 +44,8 @@ import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.util.StringContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.http.HttpStatus;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  * Test application that shows use of OpenCensus to instrument a client app.
@@ -51,41 +55,63 @@ import org.eclipse.jetty.http.HttpStatus;
  */
 public class JettyTestClient {
   private static final Logger LOGGER = Logger.getLogger(JettyTestClient.class.getName());
+  private static final PayloadProcessor.Reduction COUNT = PayloadProcessor.Reduction.COUNT;
+  private static final PayloadProcessor.Reduction SUM = PayloadProcessor.Reduction.SUM;
   private static final int MAX_RETRIES = 6;
   private TestOptions testOptions;
+  private RunReport report;
+  private WarmupPhase warmup;
+  private TrafficCapture.Writer capture;
+  // Capacity probes are sent once, since a retry would hide the error and inflate the latency
+  private boolean retry = true;
 
   // Use the command line as an entry point
-  private JettyTestClient(TestOptions testOptions) {
+  private JettyTestClient(
+      TestOptions testOptions,
+      RunReport report,
+      WarmupPhase warmup,
+      TrafficCapture.Writer capture) {
     this.testOptions = testOptions;
+    this.report = report;
+    this.warmup = warmup;
+    this.capture = capture;
   }
 
-  /**
-   * Runs the test for a given instance of the class by sending a series of HTTP requests to the
-   * given target URL. The test data returned by the HTTP requests is processed to simulate a
-   * realistic web application.
-   */
-  private void runTest() {
+  // Creates and starts a HttpClient, exiting if it cannot be started.
+  private HttpClient startHttpClient() {
     HttpClientFactory factory = testOptions.getHttpClientFactory();
     HttpClient httpClient = factory.getHttpClient();
+    ConnectionPhases.install(httpClient);
     try {
       httpClient.start();
     } catch (Exception e) {
       LOGGER.log(Level.WARNING, "Error starting HttpClient " + e.getMessage() + " exiting");
       System.exit(1);
     }
+    return httpClient;
+  }
 
+  /**
+   * Runs the test for a given instance of the class by sending a series of HTTP requests to the
+   * given target URL. The test data returned by the HTTP requests is processed to simulate a
+   * realistic web application.
+   */
+  private void runTest() {
+    HttpClient httpClient = startHttpClient();
     String targetURL = testOptions.targetURL();
     LOGGER.info("Sending requests to " + targetURL);
-    Function<Integer[], Integer> count = (numbers) -> numbers.length;
-    Function<Integer[], Integer> sum =
-        (numbers) -> Arrays.stream(numbers).mapToInt(Integer::intValue).sum();
+    Supplier<byte[]> storageContent = () -> TestInstrumentation.getPayload(testOptions.bucket());
     for (int i = 0; i < testOptions.nIterations(); i++) {
       try {
-        prepareSendProcess(httpClient, HttpMethod.GET, count, "count");
-        prepareSendProcess(httpClient, HttpMethod.POST, count, "count");
-        prepareSendProcess(httpClient, HttpMethod.GET, sum, "sum");
-        prepareSendProcess(httpClient, HttpMethod.POST, sum, "sum");
+        prepareSendProcess(httpClient, HttpMethod.GET, COUNT, storageContent);
+        prepareSendProcess(httpClient, HttpMethod.POST, COUNT, storageContent);
+        prepareSendProcess(httpClient, HttpMethod.GET, SUM, storageContent);
+        prepareSendProcess(httpClient, HttpMethod.POST, SUM, storageContent);
         Thread.sleep(100);
+      } catch (InterruptedException e) {
+        LOGGER.info("Interrupted, ending test");
+        Thread.currentThread().interrupt();
+        break;
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Error: " + e.getMessage(), e);
       }
@@ -97,38 +123,78 @@ public class JettyTestClient {
     }
   }
 
+  // Prepares, sends and processes a request, measuring its latency from now.
+  private void prepareSendProcess(
+      HttpClient httpClient,
+      HttpMethod method,
+      PayloadProcessor.Reduction downStreamFn,
+      Supplier<byte[]> contentSource)
+      throws InterruptedException {
+    prepareSendProcess(httpClient, method, downStreamFn, contentSource, System.nanoTime());
+  }
+
   /**
    * Prepare, send, and process data from the microservice.
    *
    * <p>Retrieves data from storage and sends a single request to the given targetURL with the
-   * supplied HTTP method. Sends the returned payload to a downstream processing function.
+   * supplied HTTP method. Sends the returned payload to a downstream processing function. The
+   * latency is measured from the time the request was scheduled, so that a request that waited to
+   * be sent shows the wait as latency.
    */
   // [START jetty_app_client_prepare_send]
   private void prepareSendProcess(
       HttpClient httpClient,
       HttpMethod method,
-      Function<Integer[], Integer> downStreamFn,
-      String fnName)
+      PayloadProcessor.Reduction downStreamFn,
+      Supplier<byte[]> contentSource,
+      long scheduledNanos)
       throws InterruptedException {
     Tracer tracer = Tracing.getTracer();
     try (Scope scope = tracer.spanBuilder("main").startScopedSpan()) {
-      StopWatch s = StopWatch.createStarted();
+      long cpuStart = TestInstrumentation.currentThreadCpuNanos();
       byte[] content = new byte[0];
       if (method == HttpMethod.POST) {
-        content = TestInstrumentation.getContent(testOptions.bucket());
+        content = contentSource.get();
+      }
+      captureRequest(method, content.length);
+      byte[] payload =
+          retry
+              ? sendWithRetry(httpClient, method, content)
+              : sendOnce(httpClient, method, content);
+      TestInstrumentation.processPayload(
+          payload, downStreamFn, testOptions.processing(), testOptions.cpuWork());
+      double cpuMs = -1;
+      if (cpuStart >= 0) {
+        cpuMs = (TestInstrumentation.currentThreadCpuNanos() - cpuStart) / 1.0e6;
+      }
+      double latencyMs = (System.nanoTime() - scheduledNanos) / 1.0e6;
+      if (warmup.record(latencyMs)) {
+        TestInstrumentation.recordTaggedStat(method.toString(), latencyMs, cpuMs);
+        report.recordLatency(method.toString(), latencyMs);
+      } else {
+        TestInstrumentation.recordWarmupStat(method.toString(), latencyMs);
       }
-      byte[] payload = sendWithRetry(httpClient, method, content);
-      TestInstrumentation.processPayload(payload, downStreamFn, fnName);
-      TestInstrumentation.recordTaggedStat(
-          method.toString(), s.getTime(TimeUnit.NANOSECONDS) / 1.0e6);
     }
   }
   // [END jetty_app_client_prepare_send]
 
+  // Records a request about to be sent in the traffic capture, if there is one.
+  private void captureRequest(HttpMethod method, int payloadSize) {
+    if (capture == null) {
+      return;
+    }
+    try {
+      capture.writeNow(method.asString(), payloadSize, Thread.currentThread().getName());
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Error writing traffic capture " + e.getMessage());
+    }
+  }
+
   // Sends a HTTP request to the target, returning the payload.
   // [START jetty_app_client_send_request]
   private byte[] sendRequest(HttpClient httpClient, HttpMethod method, byte[] content)
-      throws InterruptedException, TimeoutException, ExecutionException, RetryableException {
+      throws InterruptedException, TimeoutException, ExecutionException, RetryableException,
+          ClientErrorException {
     String targetURL = testOptions.targetURL();
     HttpRequest request = (HttpRequest) httpClient.newRequest(targetURL).method(method);
     if (request == null) {
@@ -140,6 +206,9 @@ public class JettyTestClient {
       request.content(contentProvider, "application/json");
     }
     request.timeout(testOptions.httpTimeout(), TimeUnit.MILLISECONDS);
+    ConnectionPhases.instrument(
+        request,
+        testOptions.annotatePhases() ? Tracing.getTracer().getCurrentSpan() : BlankSpan.INSTANCE);
     ContentResponse response = request.send();
     int status = response.getStatus();
     LOGGER.info("Response status: " + status + ", " + method);
@@ -149,6 +218,8 @@ public class JettyTestClient {
       return payload;
     } else if (HttpStatus.isServerError(status)) {
       throw new RetryableException(response.getReason());
+    } else if (HttpStatus.isClientError(status)) {
+      throw new ClientErrorException(status, response.getReason());
     }
     return new byte[0];
   }
@@ -169,47 +240,298 @@ public class JettyTestClient {
         return sendRequest(httpClient, method, content);
       } catch (RetryableException e) {
         LOGGER.log(Level.WARNING, "RetryableException attempt: " + (i + 1) + " " + e.getMessage());
-      } catch (InterruptedException e) {
-        LOGGER.log(
-            Level.WARNING, "InterruptedException attempt: " + (i + 1) + " " + e.getMessage());
       } catch (TimeoutException e) {
         LOGGER.log(Level.WARNING, "TimeoutException attempt: " + (i + 1) + " " + e.getMessage());
+        report.recordTimeout();
       } catch (ExecutionException e) {
         LOGGER.log(Level.WARNING, "ExecutionException attempt: " + (i + 1) + " " + e.getMessage());
+      } catch (ClientErrorException e) {
+        // The request itself is wrong, so retrying it would fail the same way
+        report.recordError();
+        TestInstrumentation.recordErrorStat(method.toString(), Integer.toString(e.status));
+        throw new RuntimeException("Client error " + e.status + " " + e.getMessage());
       }
       try {
         Thread.sleep(backoff.nextBackOffMillis());
       } catch(IOException e) {
+        report.recordError();
+        TestInstrumentation.recordErrorStat(method.toString(), "max_elapsed_time");
         throw new RuntimeException("MaxElapsedTime exceeded");
       }
+      report.recordRetry();
     }
+    report.recordError();
+    TestInstrumentation.recordErrorStat(method.toString(), "max_retries");
     throw new RuntimeException("Max retries exceeded");
   }
   // [END jetty_app_client_send_retry]
 
+  // Sends a HTTP request once, throwing an exception if it fails.
+  private byte[] sendOnce(HttpClient httpClient, HttpMethod method, byte[] content)
+      throws InterruptedException {
+    String reason;
+    try {
+      return sendRequest(httpClient, method, content);
+    } catch (ClientErrorException e) {
+      reason = Integer.toString(e.status);
+    } catch (RetryableException e) {
+      reason = "server_error";
+    } catch (TimeoutException e) {
+      report.recordTimeout();
+      reason = "timeout";
+    } catch (ExecutionException e) {
+      reason = "failed";
+    }
+    report.recordError();
+    TestInstrumentation.recordErrorStat(method.toString(), reason);
+    throw new RuntimeException("Request failed: " + reason);
+  }
+
   // Creates a client to send a stream of requests in its own thread.
-  private static Callable<Void> makeCallable(TestOptions testOptions) {
+  private static Callable<Void> makeCallable(
+      TestOptions testOptions,
+      RunReport report,
+      WarmupPhase warmup,
+      TrafficCapture.Writer capture) {
     return () -> {
       String threadName = Thread.currentThread().getName();
       LOGGER.info("Starting thread " + threadName);
-      JettyTestClient client = new JettyTestClient(testOptions);
+      JettyTestClient client = new JettyTestClient(testOptions, report, warmup, capture);
       client.runTest();
       return null;
     };
   }
 
-  // Starts a set of threads each sending a series of requests.
-  static void startThreads(TestOptions testOptions) {
+  // Creates the warmup phase for a run, starting the report when warmup ends.
+  private static WarmupPhase newWarmupPhase(TestOptions testOptions, RunReport report) {
+    return new WarmupPhase(
+        testOptions.warmupRequests(),
+        testOptions.warmupSeconds(),
+        testOptions.steadyStateTolerance(),
+        testOptions.warmupMaxSeconds(),
+        report::start);
+  }
+
+  // Opens the traffic capture for the run, or returns null if none was requested.
+  private static TrafficCapture.Writer openCapture(TestOptions testOptions) throws IOException {
+    if (testOptions.capture().isEmpty()) {
+      return null;
+    }
+    LOGGER.info("Capturing traffic to " + testOptions.capture());
+    return new TrafficCapture.Writer(testOptions.capture());
+  }
+
+  // Closes the traffic capture for the run, if there is one.
+  private static void closeCapture(TrafficCapture.Writer capture) {
+    if (capture == null) {
+      return;
+    }
+    try {
+      capture.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Error closing traffic capture " + e.getMessage());
+    }
+  }
+
+  // Starts a set of threads each sending a series of requests, returning a summary of the run.
+  static RunReport startThreads(TestOptions testOptions) throws IOException {
+    RunReport report = new RunReport(testOptions);
+    WarmupPhase warmup = newWarmupPhase(testOptions, report);
+    TrafficCapture.Writer capture = openCapture(testOptions);
     List<Callable<Void>> callableList = new ArrayList<Callable<Void>>();
     for (int i = 0; i < testOptions.nThreads(); i++) {
-      callableList.add(makeCallable(testOptions));
+      callableList.add(makeCallable(testOptions, report, warmup, capture));
     }
     ExecutorService pool = Executors.newFixedThreadPool(testOptions.nThreads());
     try {
-      pool.invokeAll(callableList, 10000, TimeUnit.MILLISECONDS);
+      if (testOptions.duration() > 0) {
+        pool.invokeAll(callableList, testOptions.duration(), TimeUnit.SECONDS);
+      } else {
+        pool.invokeAll(callableList);
+      }
     } catch (InterruptedException e) {
       LOGGER.log(Level.WARNING, "Error running threads " + e.getMessage(), e);
     }
+    report.finish();
+    pool.shutdownNow();
+    closeCapture(capture);
+    return report;
+  }
+
+  /**
+   * Replays a traffic capture, returning a summary of the run.
+   *
+   * <p>Each captured request is sent at its original offset from the start of the capture, divided
+   * by the replay speed, so the original bursts and gaps are kept. Each request is sent on its own
+   * thread, with at most replayConcurrency requests in flight. When that many requests are in
+   * flight the replay waits, so a slow target holds up the replay rather than filling memory with
+   * queued requests. The wait counts as lag and as latency, which is measured from the scheduled
+   * time. POST payloads are generated with the captured size. The capture is read as a stream.
+   */
+  static RunReport replay(TestOptions testOptions) throws IOException {
+    RunReport report = new RunReport(testOptions);
+    WarmupPhase warmup = newWarmupPhase(testOptions, report);
+    TrafficCapture.Writer capture = openCapture(testOptions);
+    JettyTestClient client = new JettyTestClient(testOptions, report, warmup, capture);
+    HttpClient httpClient = client.startHttpClient();
+    ExecutorService pool = Executors.newCachedThreadPool();
+    Semaphore inFlight = new Semaphore(testOptions.replayConcurrency());
+    long maxLagNanos = 0;
+    long sent = 0;
+    LOGGER.info(
+        "Replaying "
+            + testOptions.replayFile()
+            + " to "
+            + testOptions.targetURL()
+            + " at speed "
+            + testOptions.replaySpeed());
+    try (TrafficCapture.Reader reader = new TrafficCapture.Reader(testOptions.replayFile())) {
+      long startNanos = System.nanoTime();
+      long endNanos =
+          testOptions.duration() > 0
+              ? startNanos + TimeUnit.SECONDS.toNanos(testOptions.duration())
+              : Long.MAX_VALUE;
+      CapturedRequest first = reader.next();
+      for (CapturedRequest request = first; request != null; request = reader.next()) {
+        long offsetNanos =
+            (long)
+                (TimeUnit.MICROSECONDS.toNanos(request.timestampMicros() - first.timestampMicros())
+                    / testOptions.replaySpeed());
+        if (startNanos + offsetNanos > endNanos) {
+          break;
+        }
+        HttpMethod method = HttpMethod.fromString(request.method());
+        if (method == null) {
+          LOGGER.warning("Skipping request with unknown method " + request.method());
+          continue;
+        }
+        long scheduledNanos = startNanos + offsetNanos;
+        long waitNanos = scheduledNanos - System.nanoTime();
+        if (waitNanos > 0) {
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        inFlight.acquire();
+        maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - scheduledNanos);
+        int payloadSize = request.payloadSize();
+        PayloadProcessor.Reduction downStreamFn = sent % 2 == 0 ? COUNT : SUM;
+        pool.execute(
+            () -> {
+              try {
+                client.prepareSendProcess(
+                    httpClient,
+                    method,
+                    downStreamFn,
+                    () -> TestInstrumentation.getSyntheticContent(payloadSize),
+                    scheduledNanos);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error: " + e.getMessage(), e);
+              } finally {
+                inFlight.release();
+              }
+            });
+        sent++;
+      }
+      // Wait for the requests still in flight
+      inFlight.acquire(testOptions.replayConcurrency());
+      pool.shutdown();
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Replay interrupted " + e.getMessage(), e);
+      Thread.currentThread().interrupt();
+    } finally {
+      report.finish();
+      pool.shutdownNow();
+      closeCapture(capture);
+      try {
+        httpClient.stop();
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Error stopping HttpClient " + e.getMessage());
+      }
+    }
+    LOGGER.info(
+        "Replayed "
+            + sent
+            + " requests, sending fell behind the capture by up to "
+            + TimeUnit.NANOSECONDS.toMillis(maxLagNanos)
+            + " ms");
+    return report;
+  }
+
+  /**
+   * Searches for the highest request rate that meets the latency and error rate SLO, returning the
+   * exit status for the program.
+   *
+   * <p>Requests cycle through the same mix of methods and downstream functions as the loop mode.
+   * Each request is sent once, without retries, so that failures count against the SLO. The
+   * result, the latency curve and a run summary over all steps are written to the report file, if
+   * one is given. The exit status is non-zero if even the start rate missed the SLO.
+   */
+  static int capacity(TestOptions testOptions) throws IOException {
+    RunReport report = new RunReport(testOptions);
+    WarmupPhase warmup = new WarmupPhase(0, 0, 0.0, 0, () -> {});
+    TrafficCapture.Writer capture = openCapture(testOptions);
+    JettyTestClient client = new JettyTestClient(testOptions, report, warmup, capture);
+    client.retry = false;
+    HttpClient httpClient = client.startHttpClient();
+    Supplier<byte[]> storageContent = () -> TestInstrumentation.getPayload(testOptions.bucket());
+    CapacitySearch search =
+        new CapacitySearch(
+            testOptions,
+            (index) -> {
+              HttpMethod method = index % 2 == 0 ? HttpMethod.GET : HttpMethod.POST;
+              PayloadProcessor.Reduction fn = index % 4 < 2 ? COUNT : SUM;
+              client.prepareSendProcess(httpClient, method, fn, storageContent);
+            });
+    LOGGER.info(
+        "Searching for the highest rate with p99 under "
+            + testOptions.sloP99Ms()
+            + " ms and errors under "
+            + testOptions.sloErrorRate());
+    report.start();
+    double maxRate = 0;
+    try {
+      maxRate = search.run();
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Capacity search interrupted " + e.getMessage(), e);
+      Thread.currentThread().interrupt();
+    } finally {
+      report.finish();
+      closeCapture(capture);
+      try {
+        httpClient.stop();
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Error stopping HttpClient " + e.getMessage());
+      }
+    }
+    JSONObject json = search.toJson();
+    json.put("run", report.toJson());
+    String result = json.toString(2);
+    LOGGER.info("Capacity search: " + result);
+    if (!testOptions.report().isEmpty()) {
+      Files.write(Paths.get(testOptions.report()), result.getBytes(StandardCharsets.UTF_8));
+    }
+    return maxRate > 0 ? 0 : CapacitySearch.SLO_MISSED_EXIT_STATUS;
+  }
+
+  // Writes the run report and compares it with the baseline, if requested, returning the exit
+  // status for the program.
+  private static int finishReport(TestOptions testOptions, RunReport report) {
+    LOGGER.info("Run summary: " + report.toJson());
+    try {
+      if (!testOptions.report().isEmpty()) {
+        report.write(testOptions.report());
+      }
+      if (!testOptions.baseline().isEmpty()
+          && !RunReport.checkBaseline(
+              report.toJson(), testOptions.baseline(), testOptions.regressionThreshold())) {
+        return RunReport.REGRESSION_EXIT_STATUS;
+      }
+    } catch (IOException | JSONException e) {
+      LOGGER.log(Level.WARNING, "Error writing or comparing run report " + e.getMessage(), e);
+      return 1;
+    }
+    return 0;
   }
 
   // Marks retryable HTTP requests
@@ -220,14 +542,37 @@ public class JettyTestClient {
     }
   }
 
+  // Marks HTTP requests that the server rejected with a 4xx status
+  private static class ClientErrorException extends Exception {
+    final int status;
+
+    ClientErrorException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
   /** Entry point for the program on the command line */
   public static void main(String[] args) {
     try {
       TestOptions testOptions = TestOptions.parseArgs(args);
-      TestInstrumentation.init();
-      startThreads(testOptions);
+      TestInstrumentation.init(testOptions);
+      int status;
+      switch (testOptions.mode()) {
+        case REPLAY:
+          status = finishReport(testOptions, replay(testOptions));
+          break;
+        case CAPACITY:
+          status = capacity(testOptions);
+          break;
+        default:
+          status = finishReport(testOptions, startThreads(testOptions));
+      }
+      if (status != 0) {
+        System.exit(status);
+      }
     } catch (IOException e) {
-      LOGGER.log(Level.WARNING, "Error initializing OpenCensus " + e.getMessage(), e);
+      LOGGER.log(Level.WARNING, "Error initializing test " + e.getMessage(), e);
       System.exit(1);
     } catch (IllegalArgumentException e) {
       LOGGER.log(Level.WARNING, "IllegalArgumentException: " + e.getMessage(), e);
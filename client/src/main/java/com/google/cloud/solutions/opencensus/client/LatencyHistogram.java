@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local latency histogram used for exact percentiles.
+ *
+ * <p>Values are recorded in microseconds. Values below 2048 us are counted exactly and larger
+ * values fall into buckets 1/1024 of a power of two wide, so every recorded value is known to
+ * better than 0.1%. Recording is lock-free and safe to call from many threads.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 10;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+  // Values of 2^34 us (about 4.8 hours) and above are clamped.
+  private static final int MAX_EXPONENT = 33;
+  private static final int NUM_BUCKETS =
+      EXACT_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumMicros = new LongAdder();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param millis The latency in milliseconds
+   */
+  void record(double millis) {
+    long micros = Math.max(0, Math.round(millis * 1000.0));
+    counts.incrementAndGet(bucketIndex(micros));
+    count.increment();
+    sumMicros.add(micros);
+    maxMicros.accumulateAndGet(micros, Math::max);
+  }
+
+  /** @return The number of recorded values */
+  long count() {
+    return count.sum();
+  }
+
+  /** @return The mean of the recorded values in milliseconds, or 0 if there are none */
+  double mean() {
+    long n = count.sum();
+    return n == 0 ? 0 : sumMicros.sum() / 1000.0 / n;
+  }
+
+  /** @return The largest recorded value in milliseconds */
+  double max() {
+    return maxMicros.get() / 1000.0;
+  }
+
+  /**
+   * Gets a percentile of the recorded values.
+   *
+   * @param percentile The percentile, between 0 and 100
+   * @return The value at the percentile in milliseconds, or 0 if there are no values
+   */
+  double percentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+    long cumulative = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      cumulative += counts.get(i);
+      if (cumulative >= rank) {
+        return Math.min(valueMicros(i), maxMicros.get()) / 1000.0;
+      }
+    }
+    return max();
+  }
+
+  /** Receives the counts of a histogram's buckets */
+  interface BucketConsumer {
+    void accept(double valueMillis, long count);
+  }
+
+  /**
+   * Visits the buckets that hold at least one value, in increasing order of value.
+   *
+   * @param consumer Receives the midpoint of each bucket in milliseconds and its count
+   */
+  void forEachBucket(BucketConsumer consumer) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long bucketCount = counts.get(i);
+      if (bucketCount > 0) {
+        consumer.accept(valueMicros(i) / 1000.0, bucketCount);
+      }
+    }
+  }
+
+  /** Clears all recorded values */
+  void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    sumMicros.reset();
+    maxMicros.set(0);
+  }
+
+  static int bucketIndex(long micros) {
+    if (micros < EXACT_LIMIT) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+    return EXACT_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // The midpoint of the values counted in a bucket.
+  static double valueMicros(int index) {
+    if (index < EXACT_LIMIT) {
+      return index;
+    }
+    int offset = index - EXACT_LIMIT;
+    int shift = offset / SUB_BUCKETS + 1;
+    long lower = (long) (offset % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    return lower + ((1L << shift) - 1) / 2.0;
+  }
+}
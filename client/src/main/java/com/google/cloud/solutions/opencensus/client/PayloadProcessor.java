@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Applies the downstream processing functions to the numbers in a payload.
+ *
+ * <p>The functions work on primitive int arrays in plain counted loops, which the JIT compiles to
+ * vector instructions where the CPU supports them. By default every payload is processed on the
+ * calling thread, since the client already runs requests concurrently. Parallelism is opted into
+ * with a pool: payloads with at least the threshold number of elements are then split into chunks
+ * that run in the common fork join pool, or in a dedicated pool so that large payloads do not
+ * compete with other users of the common pool. The settings are written as KEY:VALUE pairs, for
+ * example "pool:dedicated,threads:4,threshold:20000".
+ */
+final class PayloadProcessor {
+  static final PayloadProcessor DEFAULT =
+      new PayloadProcessor(Pool.CALLER, 16384, Math.max(1, availableProcessors() / 2));
+  // Chunks are never split below this size, since forking costs more than summing them
+  private static final int MIN_CHUNK = 4096;
+  // Target number of chunks per thread, so that a slow thread does not hold up the result
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  /** A function of the numbers in a payload */
+  enum Reduction {
+    COUNT {
+      @Override
+      int apply(int[] numbers, int from, int to) {
+        return to - from;
+      }
+    },
+    SUM {
+      @Override
+      int apply(int[] numbers, int from, int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+          sum += numbers[i];
+        }
+        return sum;
+      }
+    };
+
+    /**
+     * Applies the function to a range of numbers.
+     *
+     * @param numbers The numbers
+     * @param from The first index, inclusive
+     * @param to The last index, exclusive
+     * @return The result for the range, which is combined with other ranges by adding
+     */
+    abstract int apply(int[] numbers, int from, int to);
+
+    @Override
+    public String toString() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /** Where payloads over the threshold are processed */
+  enum Pool {
+    CALLER,
+    COMMON,
+    DEDICATED
+  }
+
+  private final Pool pool;
+  private final int threshold;
+  private final int threads;
+  private ForkJoinPool dedicatedPool;
+
+  PayloadProcessor(Pool pool, int threshold, int threads) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Processing threshold must be positive");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("Processing threads must be positive");
+    }
+    this.pool = pool;
+    this.threshold = threshold;
+    this.threads = threads;
+  }
+
+  /**
+   * Parses processing settings.
+   *
+   * @param spec KEY:VALUE pairs with the keys pool, threshold and threads
+   * @throws IllegalArgumentException If the spec cannot be parsed
+   */
+  static PayloadProcessor parse(String spec) throws IllegalArgumentException {
+    Pool pool = DEFAULT.pool;
+    int threshold = DEFAULT.threshold;
+    int threads = DEFAULT.threads;
+    for (String pair : spec.split(",")) {
+      String[] parts = pair.split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException(
+            "Processing settings must be KEY:VALUE pairs, got " + pair);
+      }
+      try {
+        switch (parts[0]) {
+          case "pool":
+            pool = Pool.valueOf(parts[1].toUpperCase(Locale.ROOT));
+            break;
+          case "threshold":
+            threshold = Integer.parseInt(parts[1]);
+            break;
+          case "threads":
+            threads = Integer.parseInt(parts[1]);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown processing setting " + parts[0]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Number format error parsing processing " + parts[0]);
+      }
+    }
+    return new PayloadProcessor(pool, threshold, threads);
+  }
+
+  private static int availableProcessors() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Checks whether a payload is processed in a pool.
+   *
+   * @param elements The number of elements in the payload
+   * @return True if the payload is split across the pool, false if it runs on the caller
+   */
+  boolean isParallel(int elements) {
+    return pool != Pool.CALLER && elements >= threshold;
+  }
+
+  /**
+   * Applies a function to all the numbers in a payload.
+   *
+   * @param fn The function
+   * @param numbers The numbers in the payload
+   * @return The result of the function
+   */
+  int apply(Reduction fn, int[] numbers) {
+    if (!isParallel(numbers.length)) {
+      return fn.apply(numbers, 0, numbers.length);
+    }
+    ForkJoinPool forkJoinPool = pool == Pool.COMMON ? ForkJoinPool.commonPool() : dedicatedPool();
+    int chunk =
+        Math.max(MIN_CHUNK, numbers.length / (forkJoinPool.getParallelism() * CHUNKS_PER_THREAD));
+    return forkJoinPool.invoke(new Chunk(fn, numbers, 0, numbers.length, chunk));
+  }
+
+  // The pool threads are daemons, so the pool is created on first use and never shut down.
+  private synchronized ForkJoinPool dedicatedPool() {
+    if (dedicatedPool == null) {
+      dedicatedPool = new ForkJoinPool(threads);
+    }
+    return dedicatedPool;
+  }
+
+  // Applies a function to a range, splitting it in half until it is no larger than a chunk.
+  private static class Chunk extends RecursiveTask<Integer> {
+    private final Reduction fn;
+    private final int[] numbers;
+    private final int from;
+    private final int to;
+    private final int chunk;
+
+    Chunk(Reduction fn, int[] numbers, int from, int to, int chunk) {
+      this.fn = fn;
+      this.numbers = numbers;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+    }
+
+    @Override
+    protected Integer compute() {
+      if (to - from <= chunk) {
+        return fn.apply(numbers, from, to);
+      }
+      int mid = (from + to) >>> 1;
+      Chunk left = new Chunk(fn, numbers, from, mid, chunk);
+      left.fork();
+      int right = new Chunk(fn, numbers, mid, to, chunk).compute();
+      return left.join() + right;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "pool:"
+        + pool.toString().toLowerCase(Locale.ROOT)
+        + ",threshold:"
+        + threshold
+        + ",threads:"
+        + threads;
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Summary of a test run, written as JSON when the run ends.
+ *
+ * <p>The report holds the throughput, latency percentiles for each HTTP method from local
+ * histograms, the error, retry and timeout counts, and the run configuration. It also holds the
+ * worst error, over all methods, of the percentiles estimated from the exported bucket layout.
+ * Reports can be compared with a stored baseline to fail a run when throughput or tail latency
+ * regress.
+ *
+ * <p>Usage: RunReport CURRENT_REPORT BASELINE_REPORT [threshold]
+ */
+public class RunReport {
+  private static final Logger LOGGER = Logger.getLogger(RunReport.class.getName());
+  private static final double[] PERCENTILES = {50.0, 90.0, 95.0, 99.0, 99.9};
+  // Percentiles compared against the baseline
+  private static final String[] TAIL_PERCENTILES = {"p99", "p99.9"};
+  /** Exit status when a report regresses from its baseline */
+  static final int REGRESSION_EXIT_STATUS = 2;
+
+  private final TestOptions testOptions;
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private volatile boolean started;
+  private volatile long startNanos;
+  private long endNanos;
+
+  RunReport(TestOptions testOptions) {
+    this.testOptions = testOptions;
+  }
+
+  /** Marks the start of the measured run. Nothing is recorded before the run starts. */
+  void start() {
+    startNanos = System.nanoTime();
+    started = true;
+  }
+
+  /** Marks the end of the measured run */
+  void finish() {
+    endNanos = started ? System.nanoTime() : startNanos;
+  }
+
+  /**
+   * Records the latency of a successful request.
+   *
+   * @param method The HTTP method
+   * @param millis The latency in milliseconds
+   */
+  void recordLatency(String method, double millis) {
+    if (!started) {
+      return;
+    }
+    latencies.computeIfAbsent(method, k -> new LatencyHistogram()).record(millis);
+  }
+
+  /** Counts a request that failed after all retries or was rejected by the server */
+  void recordError() {
+    if (!started) {
+      return;
+    }
+    errors.increment();
+  }
+
+  /** Counts a request attempt that was retried */
+  void recordRetry() {
+    if (!started) {
+      return;
+    }
+    retries.increment();
+  }
+
+  /** Counts a request attempt that timed out */
+  void recordTimeout() {
+    if (!started) {
+      return;
+    }
+    timeouts.increment();
+  }
+
+  /** @return The run summary as a JSON object */
+  JSONObject toJson() {
+    double seconds = (endNanos - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    long requests = 0;
+    JSONObject methods = new JSONObject();
+    BucketLayout layout = testOptions.bucketLayout();
+    double[] layoutErrors = new double[PERCENTILES.length];
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      requests += histogram.count();
+      JSONObject method = new JSONObject();
+      method.put("count", histogram.count());
+      method.put("mean_ms", histogram.mean());
+      method.put("max_ms", histogram.max());
+      for (double p : PERCENTILES) {
+        method.put(percentileName(p), histogram.percentile(p));
+      }
+      double[] errors = layout.percentileErrors(histogram, PERCENTILES);
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        layoutErrors[i] = Math.max(layoutErrors[i], errors[i]);
+      }
+      methods.put(entry.getKey(), method);
+    }
+    JSONObject config = new JSONObject();
+    config.put("targetURL", testOptions.targetURL());
+    config.put("nThreads", testOptions.nThreads());
+    config.put("httpTimeout", testOptions.httpTimeout());
+    config.put("nIterations", testOptions.nIterations());
+    config.put("duration", testOptions.duration());
+    config.put("cpuWork", testOptions.cpuWork().toString());
+    config.put("processing", testOptions.processing().toString());
+    config.put("warmupRequests", testOptions.warmupRequests());
+    config.put("warmupSeconds", testOptions.warmupSeconds());
+    config.put("steadyStateTolerance", testOptions.steadyStateTolerance());
+    config.put("warmupMaxSeconds", testOptions.warmupMaxSeconds());
+    config.put("mode", testOptions.mode().toString());
+    config.put("buckets", layout.toString());
+    config.put("export", testOptions.exportSettings().toString());
+    config.put("exporter", testOptions.exporter().toString());
+    config.put("annotatePhases", testOptions.annotatePhases());
+    if (testOptions.mode() == TestOptions.Mode.REPLAY) {
+      config.put("replayFile", testOptions.replayFile());
+      config.put("replaySpeed", testOptions.replaySpeed());
+      config.put("replayConcurrency", testOptions.replayConcurrency());
+    }
+
+    JSONObject maxError = new JSONObject();
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      maxError.put(percentileName(PERCENTILES[i]), layoutErrors[i]);
+    }
+    JSONObject bucketLayout = new JSONObject();
+    bucketLayout.put("buckets", layout.boundaries().size() + 1);
+    bucketLayout.put("max_relative_error", maxError);
+
+    JSONObject report = new JSONObject();
+    report.put("duration_s", seconds);
+    report.put("requests", requests);
+    report.put("throughput_rps", seconds > 0 ? requests / seconds : 0.0);
+    report.put("errors", errors.sum());
+    report.put("retries", retries.sum());
+    report.put("timeouts", timeouts.sum());
+    report.put("latency", methods);
+    report.put("bucket_layout", bucketLayout);
+    report.put("config", config);
+    return report;
+  }
+
+  /**
+   * Writes the report to a file.
+   *
+   * @param path The file to write to
+   */
+  void write(String path) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+      writer.write(toJson().toString(2));
+    }
+    LOGGER.info("Run report written to " + path);
+  }
+
+  /**
+   * Reads a report from a file.
+   *
+   * @param path The file to read
+   */
+  static JSONObject read(String path) throws IOException {
+    try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+      return new JSONObject(new JSONTokener(reader));
+    }
+  }
+
+  /**
+   * Compares a report with a baseline.
+   *
+   * @param current The report to check
+   * @param baseline The report to compare with
+   * @param threshold The allowed relative regression, for example 0.1 for 10%
+   * @return A description of each regression, empty if there are none
+   */
+  static List<String> compare(JSONObject current, JSONObject baseline, double threshold) {
+    List<String> regressions = new ArrayList<>();
+    double throughput = current.getDouble("throughput_rps");
+    double baseThroughput = baseline.getDouble("throughput_rps");
+    if (throughput < baseThroughput * (1.0 - threshold)) {
+      regressions.add("throughput_rps dropped from " + baseThroughput + " to " + throughput);
+    }
+    JSONObject latency = current.getJSONObject("latency");
+    JSONObject baseLatency = baseline.getJSONObject("latency");
+    for (String method : baseLatency.keySet()) {
+      if (!latency.has(method)) {
+        regressions.add(method + " has no requests");
+        continue;
+      }
+      for (String p : TAIL_PERCENTILES) {
+        double value = latency.getJSONObject(method).getDouble(p);
+        double baseValue = baseLatency.getJSONObject(method).getDouble(p);
+        if (value > baseValue * (1.0 + threshold)) {
+          regressions.add(method + " " + p + " rose from " + baseValue + " to " + value + " ms");
+        }
+      }
+    }
+    return regressions;
+  }
+
+  /**
+   * Compares a report with a baseline, logging any regressions.
+   *
+   * @return True if there was no regression
+   */
+  static boolean checkBaseline(JSONObject current, String baselinePath, double threshold)
+      throws IOException {
+    List<String> regressions = compare(current, read(baselinePath), threshold);
+    for (String regression : regressions) {
+      LOGGER.warning("Regression: " + regression);
+    }
+    if (regressions.isEmpty()) {
+      LOGGER.info("No regression from baseline " + baselinePath);
+    }
+    return regressions.isEmpty();
+  }
+
+  private static String percentileName(double percentile) {
+    if (percentile == Math.rint(percentile)) {
+      return "p" + (int) percentile;
+    }
+    return "p" + percentile;
+  }
+
+  /** Compares two report files, exiting with a non-zero status on regression. */
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.out.println("Usage: RunReport CURRENT_REPORT BASELINE_REPORT [threshold]");
+      System.exit(1);
+    }
+    try {
+      double threshold = TestOptions.REGRESSION_THRESHOLD;
+      if (args.length > 2) {
+        threshold = Double.parseDouble(args[2]);
+      }
+      if (!checkBaseline(read(args[0]), args[1], threshold)) {
+        System.exit(REGRESSION_EXIT_STATUS);
+      }
+    } catch (IOException | JSONException | NumberFormatException e) {
+      LOGGER.log(Level.WARNING, "Error comparing reports " + e.getMessage(), e);
+      System.exit(1);
+    }
+  }
+}
@@ -31,6 +31,8 @@ import io.opencensus.stats.Aggregation;
 import io.opencensus.stats.Aggregation.Distribution;
 import io.opencensus.stats.BucketBoundaries;
 import io.opencensus.stats.Measure.MeasureDouble;
+import io.opencensus.stats.Measure.MeasureLong;
+import io.opencensus.stats.MeasureMap;
 import io.opencensus.stats.Stats;
 import io.opencensus.stats.StatsRecorder;
 import io.opencensus.stats.View;
@@ -46,11 +48,14 @@ import io.opencensus.trace.config.TraceConfig;
 import io.opencensus.trace.config.TraceParams;
 import io.opencensus.trace.samplers.Samplers;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Random;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.JSONArray;
@@ -64,22 +69,61 @@ public class TestInstrumentation {
   private static final int GCS_READ_TIMEOUT = 400; // ms
   private static final String SMALL_FILE = "small_file.json";
   private static final String LARGE_FILE = "large_file.json";
+  // Sizes of the files generated by util/make_json.py
+  private static final int SMALL_FILE_SIZE = 2403;
+  private static final int LARGE_FILE_SIZE = 688903;
   private static final TagKey KEY_METHOD = TagKey.create("method");
+  private static final TagKey KEY_FUNCTION = TagKey.create("function");
+  private static final TagKey KEY_PATH = TagKey.create("path");
+  private static final TagKey KEY_REASON = TagKey.create("reason");
   private static final MeasureDouble M_LATENCY_MS =
       MeasureDouble.create(
           "test_client/latency",
           "Latency in to read content from storage and send to the backend server",
           "ms");
+  private static final MeasureDouble M_CPU_MS =
+      MeasureDouble.create(
+          "test_client/cpu_time", "CPU time used by the requesting thread for a request", "ms");
+  private static final MeasureDouble M_WARMUP_LATENCY_MS =
+      MeasureDouble.create(
+          "test_client/warmup_latency", "Latency of requests sent during the warmup phase", "ms");
+  private static final MeasureLong M_ERRORS =
+      MeasureLong.create("test_client/errors", "Requests that failed, by reason", "1");
+  private static final MeasureDouble M_PROCESSING_MS =
+      MeasureDouble.create(
+          "test_client/processing_time", "Time to apply a function to a response payload", "ms");
+  private static final MeasureDouble M_PARSE_MS =
+      MeasureDouble.create("test_client/parse_time", "Time to parse a response payload", "ms");
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
   private static final Tagger tagger = Tags.getTagger();
   private static final StatsRecorder statsRecorder = Stats.getStatsRecorder();
+  // Synthetic payloads are cached by size, up to this many sizes
+  private static final int MAX_SYNTHETIC_SIZES = 64;
+  private static final Map<Integer, byte[]> syntheticContent = new ConcurrentHashMap<>();
   private static Storage storage;
+  // Payloads are generated instead of read from GCS when exporting locally
+  private static boolean syntheticPayloads;
   private static Random rand = new Random();
 
-  /** Initializes tracing, monitoring, and storage */
+  /** Initializes tracing, monitoring, and storage with the default settings */
   static void init() throws IOException {
-    initStats();
-    initTracing();
-    initStorage();
+    init(TestOptions.builder().bucket("").targetURL("").build());
+  }
+
+  /**
+   * Initializes tracing, monitoring, and storage. With a local exporter GCS is not used, and
+   * payloads are generated in the same form as the test data, so the client runs without cloud
+   * access.
+   *
+   * @param testOptions The bucket layout, exporter and export pipeline settings
+   */
+  static void init(TestOptions testOptions) throws IOException {
+    initStats(testOptions);
+    initTracing(testOptions);
+    syntheticPayloads = testOptions.exporter().kind() != ExporterChoice.Kind.STACKDRIVER;
+    if (!syntheticPayloads) {
+      initStorage();
+    }
   }
 
   /** Initializes GCS client */
@@ -95,17 +139,13 @@ public class TestInstrumentation {
   }
 
   // Initializes OpenCensus Stackdriver Stats exporter
-  private static void initStats() throws IOException {
-    // Exponential with growth factor of 1.25, rounded to nearest 1 ms.
-    Aggregation latencyDist =
-        Distribution.create(
-            BucketBoundaries.create(
-                Arrays.asList(
-                    1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 9.0, 12.0, 15.0, 18.0, 23.0, 28.0, 36.0,
-                    44.0, 56.0, 69.0, 87.0, 108.0, 136.0, 169.0, 212.0, 265.0, 331.0, 414.0, 517.0,
-                    646.0, 808.0, 1010.0, 1262.0, 1578.0, 1972.0, 2465.0, 3081.0, 3852.0, 4815.0,
-                    6019.0, 7523.0, 9404.0, 11755.0, 14694.0, 18367.0, 22959.0, 28699.0, 35873.0,
-                    44842.0, 56052.0)));
+  private static void initStats(TestOptions testOptions) throws IOException {
+    BucketLayout layout = testOptions.bucketLayout();
+    LOGGER.info("Latency buckets " + layout);
+    Aggregation latencyDist = Distribution.create(BucketBoundaries.create(layout.boundaries()));
+    // CPU, parse and processing times are usually well under the first latency bucket
+    Aggregation fineDist =
+        Distribution.create(BucketBoundaries.create(BucketLayout.FINE.boundaries()));
     View[] views =
         new View[] {
           View.create(
@@ -113,42 +153,140 @@ public class TestInstrumentation {
               "Distribution of latencies",
               M_LATENCY_MS,
               latencyDist,
-              Collections.unmodifiableList(Arrays.asList(KEY_METHOD)))
+              Collections.unmodifiableList(Arrays.asList(KEY_METHOD))),
+          View.create(
+              Name.create("octail/cpu_time"),
+              "Distribution of thread CPU time per request",
+              M_CPU_MS,
+              fineDist,
+              Collections.unmodifiableList(Arrays.asList(KEY_METHOD))),
+          View.create(
+              Name.create("octail/warmup_latency"),
+              "Distribution of latencies during warmup",
+              M_WARMUP_LATENCY_MS,
+              latencyDist,
+              Collections.unmodifiableList(Arrays.asList(KEY_METHOD))),
+          View.create(
+              Name.create("octail/errors"),
+              "Count of failed requests, by HTTP status or failure reason",
+              M_ERRORS,
+              Aggregation.Count.create(),
+              Collections.unmodifiableList(Arrays.asList(KEY_METHOD, KEY_REASON))),
+          View.create(
+              Name.create("octail/processing_time"),
+              "Distribution of downstream processing times",
+              M_PROCESSING_MS,
+              fineDist,
+              Collections.unmodifiableList(Arrays.asList(KEY_FUNCTION, KEY_PATH))),
+          View.create(
+              Name.create("octail/parse_time"),
+              "Distribution of payload parse times",
+              M_PARSE_MS,
+              fineDist,
+              Collections.emptyList())
         };
     ViewManager vmgr = Stats.getViewManager();
     for (View view : views) {
       vmgr.registerView(view);
     }
+    ConnectionPhases.registerViews(latencyDist);
+    ExportPipeline.registerViews();
     HttpViews.registerAllClientViews();
-    StackdriverStatsExporter.createAndRegister();
+    if (testOptions.exporter().kind() == ExporterChoice.Kind.STACKDRIVER) {
+      StackdriverStatsExporter.createAndRegister();
+    } else {
+      LocalExporter.registerViews();
+    }
   }
 
-  // Initializes Stackdriver Trace exporter
-  static void initTracing() {
+  // Initializes the trace exporter, exporting spans through a pipeline. A local exporter also
+  // exports the metrics.
+  static void initTracing(TestOptions testOptions) throws IOException {
     TraceConfig traceConfig = Tracing.getTraceConfig();
     TraceParams activeTraceParams = traceConfig.getActiveTraceParams();
     traceConfig.updateActiveTraceParams(
         activeTraceParams.toBuilder().setSampler(Samplers.alwaysSample()).build());
+    if (testOptions.exporter().kind() != ExporterChoice.Kind.STACKDRIVER) {
+      LocalExporter.start(
+          testOptions.exporter(), testOptions.exportSettings(), testOptions.metricsInterval());
+      return;
+    }
     try {
       StackdriverTraceExporter.createAndRegister(StackdriverTraceConfiguration.builder().build());
+      PipelinedSpanHandler.wrap(StackdriverTraceExporter.class, testOptions.exportSettings());
       LOGGER.info("Tracing initialized with: " + traceConfig.getActiveTraceParams().getSampler());
     } catch (IOException e) {
       LOGGER.log(Level.WARNING, "Not able to initialize tracing", e);
     }
   }
 
-  // Record latency for a client request.
-  static void recordTaggedStat(String methodValue, Double d) {
+  /**
+   * Gets the CPU time used by the current thread.
+   *
+   * @return The CPU time in nanoseconds, or -1 if the JVM does not support thread CPU time
+   */
+  static long currentThreadCpuNanos() {
+    if (!threadMXBean.isCurrentThreadCpuTimeSupported()) {
+      return -1;
+    }
+    return threadMXBean.getCurrentThreadCpuTime();
+  }
+
+  // Record latency and thread CPU time for a client request. A negative CPU time is not recorded.
+  static void recordTaggedStat(String methodValue, Double d, Double cpuMs) {
     TagContext tctx =
         tagger
             .emptyBuilder()
             .put(TestInstrumentation.KEY_METHOD, TagValue.create(methodValue))
             .build();
     try (Scope ss = tagger.withTagContext(tctx)) {
-      statsRecorder.newMeasureMap().put(M_LATENCY_MS, d).record();
+      MeasureMap measureMap = statsRecorder.newMeasureMap().put(M_LATENCY_MS, d);
+      if (cpuMs >= 0) {
+        measureMap.put(M_CPU_MS, cpuMs);
+      }
+      measureMap.record();
     }
   }
 
+  // Record latency for a client request sent during warmup.
+  static void recordWarmupStat(String methodValue, Double d) {
+    TagContext tctx =
+        tagger
+            .emptyBuilder()
+            .put(TestInstrumentation.KEY_METHOD, TagValue.create(methodValue))
+            .build();
+    try (Scope ss = tagger.withTagContext(tctx)) {
+      statsRecorder.newMeasureMap().put(M_WARMUP_LATENCY_MS, d).record();
+    }
+  }
+
+  // Record a request that failed, with the HTTP status or why it was given up.
+  static void recordErrorStat(String methodValue, String reason) {
+    TagContext tctx =
+        tagger
+            .emptyBuilder()
+            .put(KEY_METHOD, TagValue.create(methodValue))
+            .put(KEY_REASON, TagValue.create(reason))
+            .build();
+    statsRecorder.newMeasureMap().put(M_ERRORS, 1).record(tctx);
+  }
+
+  // Record the time taken to process a payload.
+  static void recordProcessingStat(String function, String path, double ms) {
+    TagContext tctx =
+        tagger
+            .emptyBuilder()
+            .put(KEY_FUNCTION, TagValue.create(function))
+            .put(KEY_PATH, TagValue.create(path))
+            .build();
+    statsRecorder.newMeasureMap().put(M_PROCESSING_MS, ms).record(tctx);
+  }
+
+  // Record the time taken to parse a payload.
+  static void recordParseStat(double ms) {
+    statsRecorder.newMeasureMap().put(M_PARSE_MS, ms).record();
+  }
+
   /**
    * Gets content from GCS
    *
@@ -167,25 +305,77 @@ public class TestInstrumentation {
   }
   // [END jetty_app_client_get_content]
 
+  /**
+   * Gets a payload to send, from GCS or, with a local exporter, generated with the same sizes and
+   * the same mix of small and large payloads as the test data.
+   *
+   * @param bucket The bucket holding the test data
+   * @return The payload
+   */
+  static byte[] getPayload(String bucket) {
+    if (!syntheticPayloads) {
+      return getContent(bucket);
+    }
+    return getSyntheticContent(rand.nextInt(100) >= 95 ? LARGE_FILE_SIZE : SMALL_FILE_SIZE);
+  }
+
+  /**
+   * Generates JSON content in the same form as the test data, for replaying captured traffic.
+   *
+   * @param size The approximate size of the content in bytes
+   * @return JSON content with a list of numbers
+   */
+  static byte[] getSyntheticContent(int size) {
+    byte[] content = syntheticContent.get(size);
+    if (content != null) {
+      return content;
+    }
+    StringBuilder sb = new StringBuilder(Math.max(size, 16));
+    sb.append("{\"numbers\": [");
+    for (int i = 0; sb.length() + 2 < size; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(i);
+    }
+    sb.append("]}");
+    content = sb.toString().getBytes(StandardCharsets.UTF_8);
+    if (syntheticContent.size() < MAX_SYNTHETIC_SIZES) {
+      syntheticContent.put(size, content);
+    }
+    return content;
+  }
+
   /**
    * Process the JSON payload returned from the server to simulate a real application in terms
    * processing time and CPU.
    *
    * @param payload The payload to process
    * @param fn The function to apply
-   * @param fnName The name of the function
+   * @param processor Where to apply the function
+   * @param cpuWork Additional CPU work to do for the payload
    */
-  static void processPayload(byte[] payload, Function<Integer[], Integer> fn, String fnName) {
+  static void processPayload(
+      byte[] payload,
+      PayloadProcessor.Reduction fn,
+      PayloadProcessor processor,
+      CpuWorkModel cpuWork) {
+    long start = System.nanoTime();
     String jsonString = new String(payload, StandardCharsets.UTF_8);
     try {
       JSONObject obj = new JSONObject(jsonString);
       JSONArray numArray = obj.getJSONArray("numbers");
-      Integer[] num = new Integer[numArray.length()];
-      for (int i = 0; i < numArray.length(); i++) {
+      int[] num = new int[numArray.length()];
+      for (int i = 0; i < num.length; i++) {
         num[i] = numArray.optInt(i);
       }
-      int result = fn.apply(num);
-      LOGGER.info("Processing result " + result + " (" + fnName + ")");
+      long parsed = System.nanoTime();
+      recordParseStat((parsed - start) / 1.0e6);
+      int result = processor.apply(fn, num);
+      String path = processor.isParallel(num.length) ? "parallel" : "sequential";
+      recordProcessingStat(fn.toString(), path, (System.nanoTime() - parsed) / 1.0e6);
+      cpuWork.apply(num.length);
+      LOGGER.info("Processing result " + result + " (" + fn + ")");
     } catch (JSONException e) {
       LOGGER.log(Level.WARNING, "Exception parsing payload " + e.getMessage());
       if (payload.length < 1000) {
@@ -17,6 +17,12 @@
 package com.google.cloud.solutions.opencensus.client;
 
 import com.google.auto.value.AutoValue;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 /** Encapsulates test options to be used to in running the test */
@@ -26,22 +32,107 @@ public abstract class TestOptions {
   private static final int N_THREADS_DEFAULT = 1; // Default number of threads
   private static final int HTTP_TIMEOUT = 20; // ms
   private static final int N_ITERATIONS = 1000000;
+  /** Default allowed relative regression from a baseline report */
+  static final double REGRESSION_THRESHOLD = 0.1;
+  private static final int WARMUP_MAX_SECONDS = 300;
+  private static final double SLO_P99_MS = 500.0;
+  private static final double SLO_ERROR_RATE = 0.01;
+  private static final int STEP_SECONDS = 30;
+  private static final double START_RATE = 10.0; // requests per second
+  private static final double MAX_RATE = 10000.0;
+  private static final double SEARCH_PRECISION = 0.05;
+  private static final int METRICS_INTERVAL = 60; // seconds
+  private static final int REPLAY_CONCURRENCY = 64; // requests in flight
+  /** How the test sends requests */
+  enum Mode {
+    /** Each thread sends a fixed series of requests in a loop */
+    LOOP,
+    /** Requests are sent at the times recorded in a traffic capture */
+    REPLAY,
+    /** Search for the highest request rate that meets the latency SLO */
+    CAPACITY
+  }
+
   private static final String USAGE =
       "Usage: JettyTestClient SERVER_INSTANCE PORT BUCKET "
-          + "[nThreads] [httpTimeout] [nIterations]\n"
+          + "[nThreads] [httpTimeout] [nIterations] [--option=value ...]\n"
           + "where\n"
           + "SERVER_INSTANCE Name of the GCE instance\n"
           + "PORT Port to connect on\n"
           + "bucket GCS bucket where test data is stored\n"
           + "nThreads The number of threads to execute the test with\n"
           + "httpTimeout (seconds) Tiemout for HTTP requests\n"
-          + "nIterations number of iterations per thread\n";
+          + "nIterations number of iterations per thread\n"
+          + "and the options are\n"
+          + "--cpuWork=MODE:MICROS CPU work in downstream processing, "
+          + "none, element:MICROS or request:MICROS\n"
+          + "--processing=SETTINGS Where payloads are processed, for example "
+          + "pool:dedicated,threads:4,threshold:20000, pool is caller, common or dedicated\n"
+          + "--duration=SECONDS Stop the run after this time, 0 for no limit\n"
+          + "--report=FILE Write a JSON summary of the run to FILE\n"
+          + "--baseline=FILE Exit with status 2 if the run regresses from the report in FILE\n"
+          + "--regressionThreshold=FRACTION Allowed regression from the baseline, default 0.1\n"
+          + "--warmupRequests=N Minimum number of requests in the warmup phase\n"
+          + "--warmupSeconds=SECONDS Minimum duration of the warmup phase\n"
+          + "--steadyState=TOLERANCE Continue warmup until throughput and latency vary by "
+          + "less than TOLERANCE, for example 0.1\n"
+          + "--warmupMaxSeconds=SECONDS Maximum warmup when waiting for a steady state, "
+          + "default 300\n"
+          + "--capture=FILE Record the requests sent to a traffic capture FILE\n"
+          + "--mode=MODE loop (default), replay or capacity\n"
+          + "--replayFile=FILE Traffic capture to replay in replay mode\n"
+          + "--replaySpeed=FACTOR Replay speed relative to the capture, default 1.0\n"
+          + "--replayConcurrency=N Maximum requests in flight in replay mode, default 64\n"
+          + "--sloP99Ms=MS Latency SLO in capacity mode, default 500\n"
+          + "--sloErrorRate=FRACTION Error rate SLO in capacity mode, default 0.01\n"
+          + "--stepSeconds=SECONDS Time spent at each rate in capacity mode, default 30\n"
+          + "--startRate=RPS First rate tried in capacity mode, default 10\n"
+          + "--maxRate=RPS Highest rate tried in capacity mode, default 10000\n"
+          + "--searchPrecision=FRACTION Stop the capacity search when the passing and failing "
+          + "rates are this close, default 0.05\n"
+          + "--buckets=KEY:VALUE,... Latency bucket layout with the keys growth (default 1.25), "
+          + "min (1 ms), max (60000 ms), count (200) and resolution (1 ms)\n"
+          + "--export=KEY:VALUE,... Span export pipeline with the keys queue (default 2048), "
+          + "batch (128), delay (2000 ms) and drop (oldest or newest)\n"
+          + "--exporter=EXPORTER stackdriver (default), or for runs without cloud access "
+          + "memory, file:PATH or an http:// URL such as one served by ExporterStub\n"
+          + "--metricsInterval=SECONDS How often a local exporter exports metrics, default 60\n"
+          + "--annotatePhases=true Add the connection phases of each request to its span\n";
+  private static final String OPTION_PREFIX = "--";
   private HttpClientFactory factory = new OcHttpClientFactory();
 
-  /** Use parseArgs() to creaet a TestOptions object. */
-  static TestOptions create(
-      String bucket, String targetURL, int nThreads, int httpTimeout, int nIterations) {
-    return new AutoValue_TestOptions(bucket, targetURL, nThreads, httpTimeout, nIterations);
+  /** Creates a builder with the default options. Use parseArgs() for command line options. */
+  static Builder builder() {
+    return new AutoValue_TestOptions.Builder()
+        .nThreads(N_THREADS_DEFAULT)
+        .httpTimeout(HTTP_TIMEOUT)
+        .nIterations(N_ITERATIONS)
+        .cpuWork(CpuWorkModel.NONE)
+        .processing(PayloadProcessor.DEFAULT)
+        .duration(0)
+        .report("")
+        .baseline("")
+        .regressionThreshold(REGRESSION_THRESHOLD)
+        .warmupRequests(0)
+        .warmupSeconds(0)
+        .steadyStateTolerance(0.0)
+        .warmupMaxSeconds(WARMUP_MAX_SECONDS)
+        .capture("")
+        .mode(Mode.LOOP)
+        .replayFile("")
+        .replaySpeed(1.0)
+        .replayConcurrency(REPLAY_CONCURRENCY)
+        .sloP99Ms(SLO_P99_MS)
+        .sloErrorRate(SLO_ERROR_RATE)
+        .stepSeconds(STEP_SECONDS)
+        .startRate(START_RATE)
+        .maxRate(MAX_RATE)
+        .searchPrecision(SEARCH_PRECISION)
+        .bucketLayout(BucketLayout.DEFAULT)
+        .exportSettings(ExportPipeline.Settings.DEFAULT)
+        .exporter(ExporterChoice.STACKDRIVER)
+        .metricsInterval(METRICS_INTERVAL)
+        .annotatePhases(false);
   }
 
   /**
@@ -52,34 +143,178 @@ public abstract class TestOptions {
    *
    * <p>bucket (required) GCS bucket where test data is stored
    *
+   * <p>Arguments of the form --name=value may be given in any position and set the named options
+   * described in the USAGE.
+   *
    * @param args Array of command line arguments
    * @throws IllegalArgumentException If args does not conform to the USAGE description
    */
   static TestOptions parseArgs(String[] args) throws IllegalArgumentException {
-    if (args.length < 3) {
-      System.err.println("Only got " + args.length + " arguments");
+    List<String> positional = new ArrayList<>();
+    Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      if (arg.startsWith(OPTION_PREFIX)) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) {
+          System.out.println(USAGE);
+          throw new IllegalArgumentException("Option must be --name=value: " + arg);
+        }
+        options.put(arg.substring(OPTION_PREFIX.length(), eq), arg.substring(eq + 1));
+      } else {
+        positional.add(arg);
+      }
+    }
+    if (positional.size() < 3) {
+      System.err.println("Only got " + positional.size() + " arguments");
       System.out.println(USAGE);
       throw new IllegalArgumentException();
     }
-    String host = args[0];
-    int port = getInt("port", args[1]);
+    String host = positional.get(0);
+    int port = getInt("port", positional.get(1));
     LOGGER.info("Setting host to " + host);
     String targetURL = "http://" + host + ":" + port + "/test";
 
-    String bucket = args[2];
-    int nThreads = N_THREADS_DEFAULT;
-    if (args.length > 3) {
-      nThreads = getInt("nThreads", args[3]);
+    Builder builder = builder().bucket(positional.get(2)).targetURL(targetURL);
+    if (positional.size() > 3) {
+      builder.nThreads(getInt("nThreads", positional.get(3)));
+    }
+    if (positional.size() > 4) {
+      builder.httpTimeout(getInt("httpTimeout", positional.get(4)));
+    }
+    if (positional.size() > 5) {
+      builder.nIterations(getInt("nIterations", positional.get(5)));
+    }
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      String name = option.getKey();
+      String value = option.getValue();
+      switch (name) {
+        case "cpuWork":
+          builder.cpuWork(parseOption(name, value, CpuWorkModel::parse));
+          break;
+        case "processing":
+          builder.processing(parseOption(name, value, PayloadProcessor::parse));
+          break;
+        case "duration":
+          builder.duration(getInt(name, value));
+          break;
+        case "report":
+          builder.report(value);
+          break;
+        case "baseline":
+          builder.baseline(value);
+          break;
+        case "regressionThreshold":
+          builder.regressionThreshold(parseOption(name, value, Double::parseDouble));
+          break;
+        case "warmupRequests":
+          builder.warmupRequests(getInt(name, value));
+          break;
+        case "warmupSeconds":
+          builder.warmupSeconds(getInt(name, value));
+          break;
+        case "steadyState":
+          builder.steadyStateTolerance(parseOption(name, value, Double::parseDouble));
+          break;
+        case "warmupMaxSeconds":
+          builder.warmupMaxSeconds(getInt(name, value));
+          break;
+        case "capture":
+          builder.capture(value);
+          break;
+        case "mode":
+          builder.mode(parseOption(name, value, v -> Mode.valueOf(v.toUpperCase(Locale.ROOT))));
+          break;
+        case "replayFile":
+          builder.replayFile(value);
+          break;
+        case "replaySpeed":
+          builder.replaySpeed(parseOption(name, value, Double::parseDouble));
+          break;
+        case "replayConcurrency":
+          builder.replayConcurrency(getInt(name, value));
+          break;
+        case "sloP99Ms":
+          builder.sloP99Ms(parseOption(name, value, Double::parseDouble));
+          break;
+        case "sloErrorRate":
+          builder.sloErrorRate(parseOption(name, value, Double::parseDouble));
+          break;
+        case "stepSeconds":
+          builder.stepSeconds(getInt(name, value));
+          break;
+        case "startRate":
+          builder.startRate(parseOption(name, value, Double::parseDouble));
+          break;
+        case "maxRate":
+          builder.maxRate(parseOption(name, value, Double::parseDouble));
+          break;
+        case "searchPrecision":
+          builder.searchPrecision(parseOption(name, value, Double::parseDouble));
+          break;
+        case "buckets":
+          builder.bucketLayout(parseOption(name, value, BucketLayout::parse));
+          break;
+        case "export":
+          builder.exportSettings(parseOption(name, value, ExportPipeline.Settings::parse));
+          break;
+        case "exporter":
+          builder.exporter(parseOption(name, value, ExporterChoice::parse));
+          break;
+        case "metricsInterval":
+          builder.metricsInterval(getInt(name, value));
+          break;
+        case "annotatePhases":
+          builder.annotatePhases(parseOption(name, value, TestOptions::parseBoolean));
+          break;
+        default:
+          System.out.println(USAGE);
+          throw new IllegalArgumentException("Unknown option " + name);
+      }
+    }
+    TestOptions testOptions = builder.build();
+    if (testOptions.mode() == Mode.REPLAY && testOptions.replayFile().isEmpty()) {
+      System.out.println(USAGE);
+      throw new IllegalArgumentException("Replay mode needs a --replayFile");
+    }
+    if (testOptions.replaySpeed() <= 0) {
+      System.out.println(USAGE);
+      throw new IllegalArgumentException("replaySpeed must be positive");
     }
-    int httpTimeout = HTTP_TIMEOUT;
-    if (args.length > 4) {
-      httpTimeout = getInt("httpTimeout", args[4]);
+    if (testOptions.replayConcurrency() <= 0) {
+      System.out.println(USAGE);
+      throw new IllegalArgumentException("replayConcurrency must be positive");
+    }
+    if (testOptions.metricsInterval() <= 0) {
+      System.out.println(USAGE);
+      throw new IllegalArgumentException("metricsInterval must be positive");
     }
-    int nIterations = N_ITERATIONS;
-    if (args.length > 5) {
-      nIterations = getInt("nIterations", args[5]);
+    if (testOptions.mode() == Mode.CAPACITY
+        && (testOptions.startRate() <= 0
+            || testOptions.stepSeconds() <= 0
+            || testOptions.searchPrecision() <= 0)) {
+      System.out.println(USAGE);
+      throw new IllegalArgumentException(
+          "startRate, stepSeconds and searchPrecision must be positive");
+    }
+    if (testOptions.mode() == Mode.CAPACITY
+        && testOptions.startRate() * testOptions.stepSeconds() < 1) {
+      System.out.println(USAGE);
+      throw new IllegalArgumentException("startRate must send at least one request per step");
+    }
+    return testOptions;
+  }
+
+  // Parses a named option, printing the usage if it is not valid.
+  private static <T> T parseOption(String name, String strVal, Function<String, T> parser) {
+    try {
+      T val = parser.apply(strVal);
+      LOGGER.info("Setting " + name + " to " + val);
+      return val;
+    } catch (IllegalArgumentException e) {
+      System.err.println("Error parsing " + name + ": " + e.getMessage());
+      System.out.println(USAGE);
+      throw new IllegalArgumentException("Error parsing " + name, e);
     }
-    return create(bucket, targetURL, nThreads, httpTimeout, nIterations);
   }
 
   private static int getInt(String name, String strVal) {
@@ -94,6 +329,16 @@ public abstract class TestOptions {
     }
   }
 
+  // Unlike Boolean.parseBoolean, rejects anything but true or false so that typos are not false
+  private static boolean parseBoolean(String strVal) {
+    if (strVal.equals("true")) {
+      return true;
+    } else if (strVal.equals("false")) {
+      return false;
+    }
+    throw new IllegalArgumentException("Expected true or false, got " + strVal);
+  }
+
   /** @return The GCS bucket to get test data from */
   abstract String bucket();
 
@@ -109,6 +354,84 @@ public abstract class TestOptions {
   /** @return The number of iterations for each thread */
   abstract int nIterations();
 
+  /** @return The CPU work done in downstream processing */
+  abstract CpuWorkModel cpuWork();
+
+  /** @return Where the downstream processing runs */
+  abstract PayloadProcessor processing();
+
+  /** @return The maximum duration of the run in seconds, 0 for no limit */
+  abstract int duration();
+
+  /** @return The file to write the run report to, empty for none */
+  abstract String report();
+
+  /** @return The baseline report file to compare the run with, empty for none */
+  abstract String baseline();
+
+  /** @return The allowed relative regression from the baseline */
+  abstract double regressionThreshold();
+
+  /** @return The minimum number of requests in the warmup phase */
+  abstract int warmupRequests();
+
+  /** @return The minimum duration of the warmup phase in seconds */
+  abstract int warmupSeconds();
+
+  /** @return The allowed variation in the steady state, 0 to not wait for a steady state */
+  abstract double steadyStateTolerance();
+
+  /** @return The maximum duration of warmup when waiting for a steady state */
+  abstract int warmupMaxSeconds();
+
+  /** @return The traffic capture file to record requests to, empty for none */
+  abstract String capture();
+
+  /** @return How the test sends requests */
+  abstract Mode mode();
+
+  /** @return The traffic capture to replay in replay mode */
+  abstract String replayFile();
+
+  /** @return The replay speed relative to the capture */
+  abstract double replaySpeed();
+
+  /** @return The maximum number of requests in flight in replay mode */
+  abstract int replayConcurrency();
+
+  /** @return The 99th percentile latency allowed in capacity mode, in milliseconds */
+  abstract double sloP99Ms();
+
+  /** @return The fraction of failed requests allowed in capacity mode */
+  abstract double sloErrorRate();
+
+  /** @return The time spent at each request rate in capacity mode, in seconds */
+  abstract int stepSeconds();
+
+  /** @return The first request rate tried in capacity mode, per second */
+  abstract double startRate();
+
+  /** @return The highest request rate tried in capacity mode, per second */
+  abstract double maxRate();
+
+  /** @return The relative gap between passing and failing rates that ends the search */
+  abstract double searchPrecision();
+
+  /** @return The bucket layout of the latency distributions */
+  abstract BucketLayout bucketLayout();
+
+  /** @return The queue and batch sizes and drop policy of the span export pipeline */
+  abstract ExportPipeline.Settings exportSettings();
+
+  /** @return Where spans and metrics are exported */
+  abstract ExporterChoice exporter();
+
+  /** @return How often a local exporter exports metrics, in seconds */
+  abstract int metricsInterval();
+
+  /** @return Whether the connection phases of each request are added to its span */
+  abstract boolean annotatePhases();
+
   /** @return Factory for creating HttpClient objects */
   HttpClientFactory getHttpClientFactory() {
     return factory;
@@ -117,4 +440,72 @@ public abstract class TestOptions {
   void setHttpClientFactory(HttpClientFactory factory) {
     this.factory = factory;
   }
+
+  /** Builder for TestOptions */
+  @AutoValue.Builder
+  abstract static class Builder {
+    abstract Builder bucket(String bucket);
+
+    abstract Builder targetURL(String targetURL);
+
+    abstract Builder nThreads(int nThreads);
+
+    abstract Builder httpTimeout(int httpTimeout);
+
+    abstract Builder nIterations(int nIterations);
+
+    abstract Builder cpuWork(CpuWorkModel cpuWork);
+
+    abstract Builder processing(PayloadProcessor processing);
+
+    abstract Builder duration(int duration);
+
+    abstract Builder report(String report);
+
+    abstract Builder baseline(String baseline);
+
+    abstract Builder regressionThreshold(double regressionThreshold);
+
+    abstract Builder warmupRequests(int warmupRequests);
+
+    abstract Builder warmupSeconds(int warmupSeconds);
+
+    abstract Builder steadyStateTolerance(double steadyStateTolerance);
+
+    abstract Builder warmupMaxSeconds(int warmupMaxSeconds);
+
+    abstract Builder capture(String capture);
+
+    abstract Builder mode(Mode mode);
+
+    abstract Builder replayFile(String replayFile);
+
+    abstract Builder replaySpeed(double replaySpeed);
+
+    abstract Builder replayConcurrency(int replayConcurrency);
+
+    abstract Builder sloP99Ms(double sloP99Ms);
+
+    abstract Builder sloErrorRate(double sloErrorRate);
+
+    abstract Builder stepSeconds(int stepSeconds);
+
+    abstract Builder startRate(double startRate);
+
+    abstract Builder maxRate(double maxRate);
+
+    abstract Builder searchPrecision(double searchPrecision);
+
+    abstract Builder bucketLayout(BucketLayout bucketLayout);
+
+    abstract Builder exportSettings(ExportPipeline.Settings exportSettings);
+
+    abstract Builder exporter(ExporterChoice exporter);
+
+    abstract Builder metricsInterval(int metricsInterval);
+
+    abstract Builder annotatePhases(boolean annotatePhases);
+
+    abstract TestOptions build();
+  }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact binary log of requests for replaying real traffic.
+ *
+ * <p>The file starts with the magic bytes OCTC and a version byte. Each record then holds the
+ * timestamp in microseconds since the epoch (8 bytes), a method code (1 byte, followed by the
+ * method name if the code is OTHER_METHOD), the payload size (4 bytes) and the source as a length
+ * prefixed UTF-8 string. The server CaptureFilter writes the same format. Records are written
+ * through a buffered stream and read back one at a time, so captures of any size can be replayed
+ * without loading them into memory.
+ */
+final class TrafficCapture {
+  private static final byte[] MAGIC = {'O', 'C', 'T', 'C'};
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final List<String> METHODS =
+      Arrays.asList("GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH");
+  private static final int OTHER_METHOD = 255;
+
+  private TrafficCapture() {}
+
+  /** Appends requests to a capture file. Safe to use from many threads. */
+  static final class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final long baseEpochMicros;
+    private final long baseNanos;
+
+    /**
+     * Creates a new capture file, replacing any existing file.
+     *
+     * @param path The file to write to
+     */
+    Writer(String path) throws IOException {
+      out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE));
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      baseEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+      baseNanos = System.nanoTime();
+    }
+
+    // Gets the current time in microseconds since the epoch.
+    private long nowMicros() {
+      return baseEpochMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - baseNanos);
+    }
+
+    /**
+     * Writes a request sent now to the capture. The timestamp is taken under the same lock as the
+     * write, so records from several threads are written in timestamp order.
+     *
+     * @param method The HTTP method
+     * @param payloadSize The size of the request payload in bytes
+     * @param source The thread or address that sent the request
+     */
+    synchronized void writeNow(String method, int payloadSize, String source) throws IOException {
+      write(CapturedRequest.create(nowMicros(), method, payloadSize, source));
+    }
+
+    /** Writes a request to the capture */
+    synchronized void write(CapturedRequest request) throws IOException {
+      out.writeLong(request.timestampMicros());
+      int code = METHODS.indexOf(request.method());
+      if (code < 0) {
+        out.writeByte(OTHER_METHOD);
+        out.writeUTF(request.method());
+      } else {
+        out.writeByte(code);
+      }
+      out.writeInt(request.payloadSize());
+      out.writeUTF(request.source());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /** Reads requests from a capture file as a stream. */
+  static final class Reader implements Closeable {
+    private final DataInputStream in;
+
+    /**
+     * Opens a capture file.
+     *
+     * @param path The file to read
+     * @throws IOException If the file cannot be read or is not a capture file
+     */
+    Reader(String path) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      int version = in.readUnsignedByte();
+      if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+        in.close();
+        throw new IOException("Not a version " + VERSION + " traffic capture: " + path);
+      }
+    }
+
+    /**
+     * Reads the next request. A capture whose writer was killed usually ends in a partial record,
+     * which is treated as the end of the capture.
+     *
+     * @return The next request, or null at the end of the capture
+     * @throws IOException If the file cannot be read or holds an unknown method code
+     */
+    CapturedRequest next() throws IOException {
+      try {
+        long timestampMicros = in.readLong();
+        int code = in.readUnsignedByte();
+        String method;
+        if (code == OTHER_METHOD) {
+          method = in.readUTF();
+        } else if (code < METHODS.size()) {
+          method = METHODS.get(code);
+        } else {
+          throw new IOException("Unknown method code " + code + " in traffic capture");
+        }
+        int payloadSize = in.readInt();
+        String source = in.readUTF();
+        return CapturedRequest.create(timestampMicros, method, payloadSize, source);
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
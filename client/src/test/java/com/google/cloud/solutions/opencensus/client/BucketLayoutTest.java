@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the BucketLayout class */
+public class BucketLayoutTest {
+  private static final double[] PERCENTILES = {50.0, 99.0};
+
+  @Test
+  public void defaultMatchesOriginalBoundaries() {
+    List<Double> original =
+        Arrays.asList(
+            1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 9.0, 12.0, 15.0, 18.0, 23.0, 28.0, 36.0, 44.0, 56.0,
+            69.0, 87.0, 108.0, 136.0, 169.0, 212.0, 265.0, 331.0, 414.0, 517.0, 646.0, 808.0,
+            1010.0, 1262.0, 1578.0, 1972.0, 2465.0, 3081.0, 3852.0, 4815.0, 6019.0, 7523.0, 9404.0,
+            11755.0, 14694.0, 18367.0, 22959.0, 28699.0, 35873.0, 44842.0, 56052.0);
+    assertEquals(original, BucketLayout.DEFAULT.boundaries());
+  }
+
+  @Test
+  public void parseKeepsDefaults() {
+    List<Double> boundaries = BucketLayout.parse("growth:2,count:5").boundaries();
+    assertEquals(Arrays.asList(1.0, 2.0, 4.0, 8.0, 16.0), boundaries);
+  }
+
+  @Test
+  public void fineResolvesSubMillisecond() {
+    List<Double> boundaries = BucketLayout.FINE.boundaries();
+    assertEquals(0.01, (double) boundaries.get(0));
+    assertTrue(boundaries.stream().filter(b -> b < 1.0).count() >= 20);
+    for (int i = 1; i < boundaries.size(); i++) {
+      assertTrue(boundaries.get(i) > boundaries.get(i - 1));
+    }
+  }
+
+  @Test
+  public void parseInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> BucketLayout.parse("growth:1"));
+    assertThrows(IllegalArgumentException.class, () -> BucketLayout.parse("width:2"));
+    assertThrows(IllegalArgumentException.class, () -> BucketLayout.parse("growth"));
+  }
+
+  @Test
+  public void findPercentileInterpolates() {
+    List<Double> boundaries = Arrays.asList(10.0, 20.0);
+    assertEquals(15.0, BucketLayout.findPercentile(50.0, boundaries, new long[] {0, 10, 0}, 30.0));
+    assertEquals(25.0, BucketLayout.findPercentile(50.0, boundaries, new long[] {0, 0, 10}, 30.0));
+  }
+
+  @Test
+  public void smallerGrowthIsMoreAccurate() {
+    Random random = new Random(1);
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 10000; i++) {
+      histogram.record(1.0 + random.nextDouble() * 99.0);
+    }
+    double[] coarse = BucketLayout.parse("growth:2").percentileErrors(histogram, PERCENTILES);
+    double[] fine =
+        BucketLayout.parse("growth:1.1,resolution:0.01").percentileErrors(histogram, PERCENTILES);
+    assertTrue(fine[0] < coarse[0]);
+    assertTrue(fine[1] < coarse[1] / 4);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the CapacitySearch class */
+public class CapacitySearchTest {
+
+  private static TestOptions options(double startRate, double maxRate) {
+    return options(startRate, maxRate, 4);
+  }
+
+  private static TestOptions options(double startRate, double maxRate, int nThreads) {
+    return TestOptions.builder()
+        .bucket("bucket")
+        .targetURL("http://localhost:8080/test")
+        .nThreads(nThreads)
+        .mode(TestOptions.Mode.CAPACITY)
+        .stepSeconds(1)
+        .startRate(startRate)
+        .maxRate(maxRate)
+        .build();
+  }
+
+  @Test
+  public void stepSendsAtOfferedRate() throws InterruptedException {
+    AtomicLong sent = new AtomicLong();
+    CapacitySearch search = new CapacitySearch(options(50, 50), (index) -> sent.incrementAndGet());
+    CapacitySearch.Step step = search.runStep(50);
+    assertEquals(50, sent.get());
+    assertEquals(0.0, step.errorRate);
+    assertTrue(step.meetsSlo);
+  }
+
+  @Test
+  public void sendersCoverOfferedLoad() {
+    CapacitySearch search = new CapacitySearch(options(10, 10, 4), (index) -> {});
+    // The default latency SLO of 500 ms is longer than the default HTTP timeout
+    assertEquals(4, search.senders(2));
+    assertEquals(50, search.senders(100));
+    assertEquals(1024, search.senders(100000));
+  }
+
+  @Test
+  public void slowRequestsDoNotQueueInClient() throws InterruptedException {
+    CapacitySearch search =
+        new CapacitySearch(options(20, 20, 1), (index) -> Thread.sleep(100));
+    CapacitySearch.Step step = search.runStep(20);
+    assertTrue(step.meetsSlo);
+    assertFalse(step.clientBound);
+  }
+
+  @Test
+  public void searchStopsWhenStartRateMissesSlo() throws InterruptedException {
+    AtomicLong sent = new AtomicLong();
+    CapacitySearch search =
+        new CapacitySearch(
+            options(20, 10000),
+            (index) -> {
+              sent.incrementAndGet();
+              throw new RuntimeException("Request failed: 503");
+            });
+    assertEquals(0.0, search.run());
+    assertEquals(20, sent.get());
+  }
+
+  @Test
+  public void stepWithErrorsMissesSlo() throws InterruptedException {
+    CapacitySearch search =
+        new CapacitySearch(
+            options(20, 20),
+            (index) -> {
+              throw new RuntimeException("Max retries exceeded");
+            });
+    CapacitySearch.Step step = search.runStep(20);
+    assertEquals(1.0, step.errorRate);
+    assertFalse(step.meetsSlo);
+  }
+
+  @Test
+  public void searchStopsAtMaxRate() throws InterruptedException {
+    CapacitySearch search = new CapacitySearch(options(10, 30), (index) -> {});
+    assertEquals(20.0, search.run());
+    assertEquals(2, search.toJson().getJSONArray("curve").length());
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.EndSpanOptions;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the ConnectionPhases class */
+public class ConnectionPhasesTest {
+  private static final byte[] BODY = "{\"numbers\": [1, 2, 3]}".getBytes(StandardCharsets.UTF_8);
+  private HttpServer server;
+  private HttpClient httpClient;
+
+  // Keeps the attributes of the annotations added to it
+  private static class AnnotatedSpan extends Span {
+    final List<Map<String, AttributeValue>> annotations = new CopyOnWriteArrayList<>();
+
+    AnnotatedSpan() {
+      super(SpanContext.INVALID, null);
+    }
+
+    @Override
+    public void addAnnotation(String description, Map<String, AttributeValue> attributes) {
+      annotations.add(attributes);
+    }
+
+    @Override
+    public void addAnnotation(Annotation annotation) {
+      annotations.add(annotation.getAttributes());
+    }
+
+    @Override
+    public void addLink(Link link) {}
+
+    @Override
+    public void end(EndSpanOptions options) {}
+  }
+
+  @BeforeEach
+  public void start() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          exchange.sendResponseHeaders(200, BODY.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(BODY);
+          }
+        });
+    server.start();
+    httpClient = new HttpClient();
+    ConnectionPhases.install(httpClient);
+    httpClient.start();
+  }
+
+  @AfterEach
+  public void stop() throws Exception {
+    httpClient.stop();
+    server.stop(0);
+  }
+
+  private static Request request(HttpClient httpClient, int port, AnnotatedSpan span) {
+    Request request =
+        httpClient.newRequest("http://127.0.0.1:" + port + "/").timeout(5, TimeUnit.SECONDS);
+    ConnectionPhases.instrument(request, span);
+    return request;
+  }
+
+  @Test
+  public void recordsPhasesOfRequests() throws Exception {
+    int port = server.getAddress().getPort();
+    for (int i = 0; i < 3; i++) {
+      AnnotatedSpan span = new AnnotatedSpan();
+      ContentResponse response = request(httpClient, port, span).send();
+      assertEquals(200, response.getStatus());
+      // The completion listener may run just after send() returns
+      for (int wait = 0; span.annotations.isEmpty() && wait < 100; wait++) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      assertEquals(1, span.annotations.size());
+      Map<String, AttributeValue> phases = span.annotations.get(0);
+      assertEquals(
+          new HashSet<>(Arrays.asList("pool_wait_ms", "send_ms", "first_byte_ms", "read_body_ms")),
+          phases.keySet());
+      for (AttributeValue value : phases.values()) {
+        assertTrue(value.match(s -> -1.0, b -> -1.0, l -> -1.0, d -> d, o -> -1.0) >= 0);
+      }
+    }
+    // The connection opened by the first request took its pending entry
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+    assertEquals(0, ConnectionPhases.pendingConnects(address));
+  }
+
+  @Test
+  public void failedConnectRecordsOnlyStartedPhases() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+      port = socket.getLocalPort();
+    }
+    AnnotatedSpan span = new AnnotatedSpan();
+    assertThrows(ExecutionException.class, () -> request(httpClient, port, span).send());
+    for (int wait = 0; span.annotations.isEmpty() && wait < 100; wait++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    // No response arrived, so only the phases completed before the failure are annotated
+    Set<String> phases = new HashSet<>();
+    span.annotations.forEach(a -> phases.addAll(a.keySet()));
+    assertFalse(phases.contains("first_byte_ms"));
+    assertFalse(phases.contains("read_body_ms"));
+    // The resolved address waits for its connection until the pending timeout drops it
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+    assertEquals(1, ConnectionPhases.pendingConnects(address));
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.opencensus.metrics.Metrics;
+import io.opencensus.metrics.export.Metric;
+import io.opencensus.metrics.export.MetricProducer;
+import io.opencensus.metrics.export.TimeSeries;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the ExportPipeline class */
+public class ExportPipelineTest {
+
+  private static List<Integer> flatten(List<List<Integer>> batches) {
+    return batches.stream().flatMap(List::stream).collect(Collectors.toList());
+  }
+
+  @Test
+  public void exportsInBatches() throws InterruptedException {
+    List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    ExportPipeline<Integer> pipeline =
+        new ExportPipeline<>(
+            "test", ExportPipeline.Settings.parse("queue:10,batch:4,delay:50"), batches::add);
+    for (int i = 0; i < 6; i++) {
+      pipeline.offer(i);
+    }
+    pipeline.close(1000);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), flatten(batches));
+    assertEquals(Arrays.asList(0, 1, 2, 3), batches.get(0));
+    assertEquals(0, pipeline.depth());
+  }
+
+  @Test
+  public void dropNewestKeepsQueue() throws InterruptedException {
+    List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExportPipeline<Integer> pipeline =
+        new ExportPipeline<>(
+            "test",
+            ExportPipeline.Settings.parse("queue:3,batch:1,delay:10,drop:newest"),
+            batch -> {
+              batches.add(batch);
+              blocked.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    pipeline.offer(0);
+    blocked.await();
+    for (int i = 1; i < 10; i++) {
+      pipeline.offer(i);
+    }
+    assertEquals(3, pipeline.depth());
+    release.countDown();
+    pipeline.close(1000);
+    assertEquals(Arrays.asList(0, 1, 2, 3), flatten(batches));
+  }
+
+  @Test
+  public void dropOldestKeepsRecent() throws InterruptedException {
+    List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExportPipeline<Integer> pipeline =
+        new ExportPipeline<>(
+            "test",
+            ExportPipeline.Settings.parse("queue:3,batch:1,delay:10,drop:oldest"),
+            batch -> {
+              batches.add(batch);
+              blocked.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    pipeline.offer(0);
+    blocked.await();
+    for (int i = 1; i < 10; i++) {
+      pipeline.offer(i);
+    }
+    release.countDown();
+    pipeline.close(1000);
+    assertEquals(Arrays.asList(0, 7, 8, 9), flatten(batches));
+  }
+
+  // Reads the queue depth of a pipeline from the metric producers, as an exporter does.
+  private static long exportedDepth(String name) {
+    for (MetricProducer producer :
+        Metrics.getExportComponent().getMetricProducerManager().getAllMetricProducer()) {
+      for (Metric metric : producer.getMetrics()) {
+        if (!metric.getMetricDescriptor().getName().equals("octail/export_queue_depth")) {
+          continue;
+        }
+        for (TimeSeries timeSeries : metric.getTimeSeriesList()) {
+          if (timeSeries.getLabelValues().get(0).getValue().equals(name)) {
+            return timeSeries
+                .getPoints()
+                .get(0)
+                .getValue()
+                .match(d -> -1L, l -> l, d -> -1L, s -> -1L, v -> -1L);
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void depthIsExportedWhileSinkStalls() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExportPipeline<Integer> pipeline =
+        new ExportPipeline<>(
+            "stalled",
+            ExportPipeline.Settings.parse("queue:10,batch:1,delay:10"),
+            batch -> {
+              blocked.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    pipeline.offer(0);
+    blocked.await();
+    assertEquals(0, exportedDepth("stalled"));
+    for (int i = 1; i < 6; i++) {
+      pipeline.offer(i);
+    }
+    assertEquals(5, exportedDepth("stalled"));
+    release.countDown();
+    pipeline.close(1000);
+    // A closed pipeline is no longer exported, so the gauge does not read a collected depth
+    assertEquals(-1, exportedDepth("stalled"));
+  }
+
+  @Test
+  public void closeKeepsDepthOfNewerPipeline() throws InterruptedException {
+    ExportPipeline.Settings settings = ExportPipeline.Settings.parse("queue:10,batch:1,delay:10");
+    ExportPipeline<Integer> older = new ExportPipeline<>("renamed", settings, batch -> {});
+    ExportPipeline<Integer> newer = new ExportPipeline<>("renamed", settings, batch -> {});
+    older.close(1000);
+    assertEquals(0, exportedDepth("renamed"));
+    newer.close(1000);
+    assertEquals(-1, exportedDepth("renamed"));
+  }
+
+  @Test
+  public void parseInvalidSettings() {
+    assertThrows(IllegalArgumentException.class, () -> ExportPipeline.Settings.parse("queue:0"));
+    assertThrows(IllegalArgumentException.class, () -> ExportPipeline.Settings.parse("drop:any"));
+    assertThrows(IllegalArgumentException.class, () -> ExportPipeline.Settings.parse("size:1"));
+  }
+}
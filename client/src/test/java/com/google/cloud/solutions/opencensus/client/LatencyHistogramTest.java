@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the LatencyHistogram class */
+public class LatencyHistogramTest {
+
+  @Test
+  public void percentilesWithinResolution() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i / 100.0);
+    }
+    assertEquals(100000, histogram.count());
+    assertEquals(500.0, histogram.percentile(50.0), 0.5);
+    assertEquals(990.0, histogram.percentile(99.0), 1.0);
+    assertEquals(1000.0, histogram.max(), 0.001);
+    assertEquals(500.005, histogram.mean(), 0.001);
+  }
+
+  @Test
+  public void emptyIsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0.0, histogram.percentile(99.0), 0.0);
+    assertEquals(0.0, histogram.mean(), 0.0);
+  }
+
+  @Test
+  public void resetClears() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(12.5);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0.0, histogram.percentile(50.0), 0.0);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.net.httpserver.HttpServer;
+import io.opencensus.common.Timestamp;
+import io.opencensus.metrics.LabelValue;
+import io.opencensus.metrics.export.Point;
+import io.opencensus.metrics.export.Value;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import io.opencensus.trace.export.SpanData;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the LocalExporter class */
+public class LocalExporterTest {
+
+  @Test
+  public void encodePoint() {
+    Point point = Point.create(Value.longValue(5), Timestamp.create(1, 2));
+    assertEquals(
+        "M\toctail/latency\tGET\t1000000002\t5",
+        LocalExporter.encodePoint(
+            "octail/latency", Arrays.asList(LabelValue.create("GET")), point));
+  }
+
+  private static SpanData spanData() {
+    SpanContext context =
+        SpanContext.create(
+            TraceId.fromLowerBase16("4bf92f3577b34da6a3ce929d0e0e4736"),
+            SpanId.fromLowerBase16("00f067aa0ba902b7"),
+            TraceOptions.DEFAULT,
+            Tracestate.builder().build());
+    return SpanData.create(
+        context,
+        null,
+        null,
+        "Sent.test",
+        null,
+        Timestamp.create(1, 0),
+        SpanData.Attributes.create(Collections.emptyMap(), 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.TimedEvents.create(Collections.emptyList(), 0),
+        SpanData.Links.create(Collections.emptyList(), 0),
+        null,
+        Status.OK,
+        Timestamp.create(1, 500));
+  }
+
+  @Test
+  public void closeExportsQueuedSpans() {
+    LocalExporter.MemorySink sink = new LocalExporter.MemorySink();
+    // The batch delay is longer than the test, so only close exports the span
+    LocalExporter exporter =
+        new LocalExporter(sink, ExportPipeline.Settings.parse("queue:10,batch:10,delay:60000"));
+    exporter.spanPipeline().export(Collections.singletonList(spanData()));
+    exporter.close();
+    List<String> records = sink.records();
+    assertEquals(
+        "S\t4bf92f3577b34da6a3ce929d0e0e4736\t00f067aa0ba902b7\t-\tSent.test\t1000000000\t500"
+            + "\tOK\t0\t0\t0",
+        records.get(0));
+    exporter.close();
+    assertEquals(records, sink.records());
+  }
+
+  @Test
+  public void memorySinkKeepsRecords() throws IOException {
+    LocalExporter.MemorySink sink = new LocalExporter.MemorySink();
+    sink.write("spans", Arrays.asList("a", "b"));
+    assertEquals(Arrays.asList("a", "b"), sink.records());
+  }
+
+  @Test
+  public void fileSinkAppends() throws IOException {
+    File file = File.createTempFile("export", ".tsv");
+    file.deleteOnExit();
+    try (LocalExporter.FileSink sink = new LocalExporter.FileSink(file.getPath())) {
+      sink.write("spans", Arrays.asList("a", "b"));
+    }
+    try (LocalExporter.FileSink sink = new LocalExporter.FileSink(file.getPath())) {
+      sink.write("metrics", Collections.singletonList("c"));
+    }
+    assertEquals(
+        Arrays.asList("a", "b", "c"), Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void httpSinkPostsToStub() throws IOException {
+    ExporterStub stub = new ExporterStub(0);
+    HttpServer server = stub.start(0);
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort();
+      new LocalExporter.HttpSink(url).write("spans", Arrays.asList("a", "b", "c"));
+      assertEquals(3, stub.records());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void parseExporterChoice() {
+    assertEquals(ExporterChoice.Kind.MEMORY, ExporterChoice.parse("memory").kind());
+    assertEquals("/tmp/x", ExporterChoice.parse("file:/tmp/x").target());
+    assertEquals("http://localhost:9411", ExporterChoice.parse("http://localhost:9411").target());
+    assertThrows(IllegalArgumentException.class, () -> ExporterChoice.parse("zipkin"));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the PayloadProcessor class */
+public class PayloadProcessorTest {
+
+  private static int[] numbers(int size) {
+    int[] numbers = new int[size];
+    for (int i = 0; i < size; i++) {
+      numbers[i] = i % 1000 - 300;
+    }
+    return numbers;
+  }
+
+  private static int expectedSum(int[] numbers) {
+    int sum = 0;
+    for (int n : numbers) {
+      sum += n;
+    }
+    return sum;
+  }
+
+  @Test
+  public void allPoolsGiveSameResult() {
+    int[] numbers = numbers(100000);
+    for (String pool : new String[] {"caller", "common", "dedicated"}) {
+      PayloadProcessor processor = PayloadProcessor.parse("pool:" + pool + ",threads:3");
+      assertEquals(
+          expectedSum(numbers), processor.apply(PayloadProcessor.Reduction.SUM, numbers), pool);
+      assertEquals(
+          numbers.length, processor.apply(PayloadProcessor.Reduction.COUNT, numbers), pool);
+    }
+  }
+
+  @Test
+  public void parallelOnlyAboveThreshold() {
+    PayloadProcessor processor = PayloadProcessor.parse("pool:common,threshold:1000");
+    assertFalse(processor.isParallel(999));
+    assertTrue(processor.isParallel(1000));
+    assertFalse(PayloadProcessor.parse("pool:caller").isParallel(Integer.MAX_VALUE));
+    assertFalse(PayloadProcessor.DEFAULT.isParallel(Integer.MAX_VALUE));
+    int[] small = numbers(10);
+    assertEquals(expectedSum(small), processor.apply(PayloadProcessor.Reduction.SUM, small));
+  }
+
+  @Test
+  public void parseKeepsDefaults() {
+    assertEquals(
+        "pool:dedicated,threshold:20000,threads:2",
+        PayloadProcessor.parse("pool:dedicated,threads:2,threshold:20000").toString());
+    assertTrue(PayloadProcessor.DEFAULT.toString().startsWith("pool:caller,threshold:16384"));
+  }
+
+  @Test
+  public void parseInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> PayloadProcessor.parse("pool:other"));
+    assertThrows(IllegalArgumentException.class, () -> PayloadProcessor.parse("threshold:0"));
+    assertThrows(IllegalArgumentException.class, () -> PayloadProcessor.parse("threads:x"));
+    assertThrows(IllegalArgumentException.class, () -> PayloadProcessor.parse("size:1"));
+  }
+}
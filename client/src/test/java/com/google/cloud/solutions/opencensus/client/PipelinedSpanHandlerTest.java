@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.export.SpanData;
+import io.opencensus.trace.export.SpanExporter.Handler;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the PipelinedSpanHandler class */
+public class PipelinedSpanHandlerTest {
+  private final Logger logger = Logger.getLogger(PipelinedSpanHandler.class.getName());
+  private final List<LogRecord> warnings = new CopyOnWriteArrayList<>();
+  private final java.util.logging.Handler logHandler =
+      new java.util.logging.Handler() {
+        @Override
+        public void publish(LogRecord record) {
+          if (record.getLevel() == Level.WARNING) {
+            warnings.add(record);
+          }
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+      };
+
+  // Keeps its handler in the field that PipelinedSpanHandler reads, like the Stackdriver exporter
+  private static class FieldExporter {
+    private static Handler handler;
+  }
+
+  // Keeps its handler under another name, as a later exporter version might
+  private static class RenamedFieldExporter {
+    private static Handler spanHandler;
+  }
+
+  private static final Handler NO_OP =
+      new Handler() {
+        @Override
+        public void export(Collection<SpanData> spanDataList) {}
+      };
+
+  @BeforeEach
+  public void addLogHandler() {
+    logger.addHandler(logHandler);
+  }
+
+  @AfterEach
+  public void removeLogHandler() {
+    logger.removeHandler(logHandler);
+    Tracing.getExportComponent()
+        .getSpanExporter()
+        .unregisterHandler(FieldExporter.class.getName());
+  }
+
+  @Test
+  public void wrapsHandlerFromField() {
+    FieldExporter.handler = NO_OP;
+    assertTrue(PipelinedSpanHandler.wrap(FieldExporter.class, ExportPipeline.Settings.DEFAULT));
+    assertTrue(warnings.isEmpty());
+  }
+
+  @Test
+  public void missingFieldFallsBackWithWarning() {
+    RenamedFieldExporter.spanHandler = NO_OP;
+    assertFalse(
+        PipelinedSpanHandler.wrap(RenamedFieldExporter.class, ExportPipeline.Settings.DEFAULT));
+    assertEquals(1, warnings.size());
+  }
+
+  @Test
+  public void unregisteredExporterFallsBackWithWarning() {
+    FieldExporter.handler = null;
+    assertFalse(PipelinedSpanHandler.wrap(FieldExporter.class, ExportPipeline.Settings.DEFAULT));
+    assertEquals(1, warnings.size());
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the RunReport class */
+public class RunReportTest {
+
+  private static JSONObject report(double throughput, double p99) {
+    JSONObject get = new JSONObject();
+    get.put("p99", p99);
+    get.put("p99.9", p99 * 2);
+    JSONObject latency = new JSONObject();
+    latency.put("GET", get);
+    JSONObject report = new JSONObject();
+    report.put("throughput_rps", throughput);
+    report.put("latency", latency);
+    return report;
+  }
+
+  @Test
+  public void compareWithinThreshold() {
+    List<String> regressions = RunReport.compare(report(95.0, 10.5), report(100.0, 10.0), 0.1);
+    assertTrue(regressions.isEmpty(), "Unexpected regressions: " + regressions);
+  }
+
+  @Test
+  public void compareThroughputRegression() {
+    List<String> regressions = RunReport.compare(report(80.0, 10.0), report(100.0, 10.0), 0.1);
+    assertEquals(1, regressions.size());
+  }
+
+  @Test
+  public void compareTailLatencyRegression() {
+    List<String> regressions = RunReport.compare(report(100.0, 12.0), report(100.0, 10.0), 0.1);
+    assertEquals(2, regressions.size());
+  }
+
+  @Test
+  public void toJsonSummarizesRun() {
+    TestOptions options =
+        TestOptions.builder().bucket("mybucket").targetURL("http://jetty_server:1234/test").build();
+    RunReport runReport = new RunReport(options);
+    runReport.start();
+    runReport.recordLatency("GET", 5.0);
+    runReport.recordLatency("POST", 7.0);
+    runReport.recordRetry();
+    runReport.finish();
+    JSONObject json = runReport.toJson();
+    assertEquals(2, json.getLong("requests"));
+    assertEquals(1, json.getLong("retries"));
+    assertEquals(5.0, json.getJSONObject("latency").getJSONObject("GET").getDouble("p50"), 0.01);
+  }
+}
@@ -27,6 +27,7 @@ import io.opencensus.trace.Sampler;
 import io.opencensus.trace.Tracing;
 import io.opencensus.trace.config.TraceConfig;
 import io.opencensus.trace.samplers.Samplers;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Set;
 import org.junit.jupiter.api.Test;
@@ -59,6 +60,19 @@ public class TestInstrumentationTest {
     assertEquals(Samplers.alwaysSample(), sampler);
   }
 
+  @Test
+  public void syntheticContentMatchesTestData() {
+    // The sizes of small_file.json and large_file.json from util/make_json.py
+    String small =
+        new String(TestInstrumentation.getSyntheticContent(2403), StandardCharsets.UTF_8);
+    assertEquals(2403, small.length());
+    assertTrue(small.startsWith("{\"numbers\": [0, 1, 2"));
+    assertTrue(small.endsWith(", 499]}"));
+    String large =
+        new String(TestInstrumentation.getSyntheticContent(688903), StandardCharsets.UTF_8);
+    assertTrue(large.endsWith(", 99999]}"));
+  }
+
   @AfterAll
   static void tearDownAll() {
     StackdriverStatsExporter.unregister();
@@ -18,6 +18,7 @@ package com.google.cloud.solutions.opencensus.client;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
@@ -62,4 +63,34 @@ public class TestOptionsTest {
     String[] args = {HOST, PORT, BUCKET, nThreads, httpTimeout};
     assertThrows(IllegalArgumentException.class, () -> TestOptions.parseArgs(args));
   }
+
+  @Test
+  public void parseArgsNamedOptions() {
+    String[] args = {HOST, "--cpuWork=element:2", PORT, BUCKET, "4"};
+    TestOptions options = TestOptions.parseArgs(args);
+    assertEquals("targetURL wrong", "http://jetty_server:1234/test", options.targetURL());
+    assertEquals("nThreads wrong", 4, options.nThreads());
+    assertEquals("cpuWork mode wrong", CpuWorkModel.Mode.PER_ELEMENT, options.cpuWork().mode());
+    assertEquals("cpuWork micros wrong", 2, options.cpuWork().micros());
+  }
+
+  @Test
+  public void parseArgsUnknownOption() {
+    String[] args = {HOST, PORT, BUCKET, "--noSuchOption=1"};
+    assertThrows(IllegalArgumentException.class, () -> TestOptions.parseArgs(args));
+  }
+
+  @Test
+  public void parseArgsInvalidCpuWork() {
+    String[] args = {HOST, PORT, BUCKET, "--cpuWork=element"};
+    assertThrows(IllegalArgumentException.class, () -> TestOptions.parseArgs(args));
+  }
+
+  @Test
+  public void parseArgsAnnotatePhases() {
+    String[] args = {HOST, PORT, BUCKET, "--annotatePhases=true"};
+    assertTrue(TestOptions.parseArgs(args).annotatePhases());
+    String[] invalid = {HOST, PORT, BUCKET, "--annotatePhases=yes"};
+    assertThrows(IllegalArgumentException.class, () -> TestOptions.parseArgs(invalid));
+  }
 }
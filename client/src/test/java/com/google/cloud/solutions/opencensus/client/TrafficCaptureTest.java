@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the TrafficCapture class */
+public class TrafficCaptureTest {
+
+  @Test
+  public void writeAndReadBack() throws Exception {
+    File file = File.createTempFile("capture", ".bin");
+    file.deleteOnExit();
+    CapturedRequest get = CapturedRequest.create(1000L, "GET", 0, "pool-1-thread-1");
+    CapturedRequest post = CapturedRequest.create(2500L, "POST", 2400, "10.0.0.2");
+    CapturedRequest other = CapturedRequest.create(4000L, "PROPFIND", 10, "");
+    try (TrafficCapture.Writer writer = new TrafficCapture.Writer(file.getPath())) {
+      writer.write(get);
+      writer.write(post);
+      writer.write(other);
+    }
+    try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file.getPath())) {
+      assertEquals(get, reader.next());
+      assertEquals(post, reader.next());
+      assertEquals(other, reader.next());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void partialRecordEndsCapture() throws Exception {
+    File file = File.createTempFile("capture", ".bin");
+    file.deleteOnExit();
+    CapturedRequest get = CapturedRequest.create(1000L, "GET", 0, "pool-1-thread-1");
+    try (TrafficCapture.Writer writer = new TrafficCapture.Writer(file.getPath())) {
+      writer.write(get);
+      writer.write(CapturedRequest.create(2000L, "POST", 10, "pool-1-thread-2"));
+    }
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 5));
+    try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file.getPath())) {
+      assertEquals(get, reader.next());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void concurrentWritesKeepTimestampOrder() throws Exception {
+    File file = File.createTempFile("capture", ".bin");
+    file.deleteOnExit();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try (TrafficCapture.Writer writer = new TrafficCapture.Writer(file.getPath())) {
+      for (int i = 0; i < 8; i++) {
+        pool.execute(
+            () -> {
+              for (int j = 0; j < 1000; j++) {
+                try {
+                  writer.writeNow("GET", j, Thread.currentThread().getName());
+                } catch (IOException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            });
+      }
+      pool.shutdown();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    int count = 0;
+    long last = Long.MIN_VALUE;
+    try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file.getPath())) {
+      for (CapturedRequest request = reader.next(); request != null; request = reader.next()) {
+        assertTrue(request.timestampMicros() >= last);
+        last = request.timestampMicros();
+        count++;
+      }
+    }
+    assertEquals(8000, count);
+  }
+
+  @Test
+  public void rejectsUnknownMethodCode() throws Exception {
+    File file = File.createTempFile("capture", ".bin");
+    file.deleteOnExit();
+    try (TrafficCapture.Writer writer = new TrafficCapture.Writer(file.getPath())) {
+      writer.write(CapturedRequest.create(1000L, "GET", 0, ""));
+    }
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    // The method code follows the 5 byte header and the 8 byte timestamp
+    bytes[13] = (byte) 200;
+    Files.write(file.toPath(), bytes);
+    try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file.getPath())) {
+      assertThrows(IOException.class, reader::next);
+    }
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws Exception {
+    File file = File.createTempFile("capture", ".json");
+    file.deleteOnExit();
+    Files.write(file.toPath(), "{\"numbers\": []}".getBytes("UTF-8"));
+    assertThrows(IOException.class, () -> new TrafficCapture.Reader(file.getPath()));
+  }
+
+  @Test
+  public void syntheticContentHasSize() {
+    byte[] content = TestInstrumentation.getSyntheticContent(2400);
+    assertEquals(2400, content.length, 8);
+  }
+}
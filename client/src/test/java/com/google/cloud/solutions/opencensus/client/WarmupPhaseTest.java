@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for the WarmupPhase class */
+public class WarmupPhaseTest {
+
+  @Test
+  public void noWarmupMeasuresImmediately() {
+    AtomicInteger started = new AtomicInteger();
+    WarmupPhase warmup = new WarmupPhase(0, 0, 0.0, 0, started::incrementAndGet);
+    assertTrue(warmup.isMeasuring());
+    assertTrue(warmup.record(1.0));
+    assertEquals(1, started.get());
+  }
+
+  @Test
+  public void warmupByRequestCount() {
+    AtomicInteger started = new AtomicInteger();
+    WarmupPhase warmup = new WarmupPhase(3, 0, 0.0, 0, started::incrementAndGet);
+    assertFalse(warmup.record(1.0));
+    assertFalse(warmup.record(1.0));
+    assertFalse(warmup.record(1.0));
+    assertTrue(warmup.isMeasuring());
+    assertTrue(warmup.record(1.0));
+    assertEquals(1, started.get());
+  }
+
+  @Test
+  public void steadyStateWaitsForWindows() {
+    WarmupPhase warmup = new WarmupPhase(1, 0, 0.1, 300, () -> {});
+    warmup.record(1.0);
+    warmup.record(1.0);
+    assertFalse(warmup.isMeasuring());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates the bucket boundaries of a latency distribution.
+ *
+ * <p>Boundaries grow exponentially from a minimum by a growth factor, are rounded to a resolution
+ * and stop at a maximum value or bucket count. A smaller growth factor gives more accurate
+ * percentiles at the cost of more buckets to export. This is the same generator as the client's,
+ * which also reports the percentile error of a layout.
+ */
+final class BucketLayout {
+  private final double growth;
+  private final double min;
+  private final double max;
+  private final int maxCount;
+  private final double resolution;
+
+  BucketLayout(double growth, double min, double max, int maxCount, double resolution) {
+    if (growth <= 1.0) {
+      throw new IllegalArgumentException("Bucket growth factor must be greater than 1");
+    }
+    if (min <= 0 || max < min) {
+      throw new IllegalArgumentException("Bucket minimum must be positive and below the maximum");
+    }
+    if (maxCount < 1 || resolution < 0) {
+      throw new IllegalArgumentException(
+          "Bucket count must be positive and resolution must not be negative");
+    }
+    this.growth = growth;
+    this.min = min;
+    this.max = max;
+    this.maxCount = maxCount;
+    this.resolution = resolution;
+  }
+
+  /**
+   * Generates the bucket boundaries. Boundaries that round to the same value are only included
+   * once.
+   *
+   * @return The boundaries in increasing order
+   */
+  List<Double> boundaries() {
+    List<Double> boundaries = new ArrayList<>();
+    double previous = 0;
+    for (double bound = min; bound <= max && boundaries.size() < maxCount; bound *= growth) {
+      double rounded = round(bound);
+      if (rounded > previous) {
+        boundaries.add(rounded);
+        previous = rounded;
+      }
+    }
+    return Collections.unmodifiableList(boundaries);
+  }
+
+  // Rounds to the resolution, dividing by whole numbers where possible to avoid values like
+  // 0.5700000000000001.
+  private double round(double bound) {
+    if (resolution == 0) {
+      return bound;
+    }
+    long steps = Math.round(bound / resolution);
+    return resolution < 1 ? steps / Math.rint(1 / resolution) : steps * resolution;
+  }
+
+  @Override
+  public String toString() {
+    return "growth:"
+        + growth
+        + ",min:"
+        + min
+        + ",max:"
+        + max
+        + ",count:"
+        + maxCount
+        + ",resolution:"
+        + resolution;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the requests received in a compact binary traffic capture that the client can replay.
+ *
+ * <p>The format is the same as the client TrafficCapture: the magic bytes OCTC and a version
+ * byte, then for each request the timestamp in microseconds since the epoch (8 bytes), a method
+ * code (1 byte, followed by the method name if the code is 255), the payload size (4 bytes) and
+ * the remote address as a length prefixed UTF-8 string. Records are written through a buffered
+ * stream, which is flushed every second and when the filter is destroyed, so a server that is
+ * killed loses at most the last second of records. The client reads a partial last record as the
+ * end of the capture.
+ *
+ * <p>Init parameters: file, the capture file to write. Capturing is off if it is not set.
+ */
+public class CaptureFilter implements Filter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CaptureFilter.class);
+  private static final byte[] MAGIC = {'O', 'C', 'T', 'C'};
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final List<String> METHODS =
+      Arrays.asList("GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH");
+  private static final int OTHER_METHOD = 255;
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+  // Read without the lock in doFilter, and checked again under the lock before writing
+  private volatile DataOutputStream out;
+  private ScheduledExecutorService flusher;
+  private long baseEpochMicros;
+  private long baseNanos;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    String file = filterConfig.getInitParameter("file");
+    if (file == null || file.isEmpty()) {
+      LOGGER.info("Traffic capture is off");
+      return;
+    }
+    try {
+      out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      baseEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+      baseNanos = System.nanoTime();
+      flusher =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread thread = new Thread(r, "capture-flush");
+                thread.setDaemon(true);
+                return thread;
+              });
+      flusher.scheduleWithFixedDelay(
+          this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      LOGGER.info("Capturing traffic to " + file);
+    } catch (IOException e) {
+      throw new ServletException("Could not open traffic capture " + file, e);
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (out != null && request instanceof HttpServletRequest) {
+      String method = ((HttpServletRequest) request).getMethod();
+      int payloadSize = Math.max(request.getContentLength(), 0);
+      String source = request.getRemoteAddr();
+      write(method, payloadSize, source == null ? "" : source);
+    }
+    chain.doFilter(request, response);
+  }
+
+  // Writes a request, taking its timestamp under the lock so that records are in timestamp order.
+  private synchronized void write(String method, int payloadSize, String source) {
+    if (out == null) {
+      // The filter was destroyed after doFilter checked
+      return;
+    }
+    long timestampMicros =
+        baseEpochMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - baseNanos);
+    try {
+      out.writeLong(timestampMicros);
+      int code = METHODS.indexOf(method);
+      if (code < 0) {
+        out.writeByte(OTHER_METHOD);
+        out.writeUTF(method);
+      } else {
+        out.writeByte(code);
+      }
+      out.writeInt(payloadSize);
+      out.writeUTF(source);
+    } catch (IOException e) {
+      LOGGER.warn("Error writing traffic capture", e);
+    }
+  }
+
+  private synchronized void flush() {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.flush();
+    } catch (IOException e) {
+      LOGGER.warn("Error flushing traffic capture", e);
+    }
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (out == null) {
+      return;
+    }
+    flusher.shutdownNow();
+    try {
+      out.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing traffic capture", e);
+    }
+    out = null;
+  }
+}
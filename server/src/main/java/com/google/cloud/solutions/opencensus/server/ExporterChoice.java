@@ -0,0 +1,92 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import java.util.Locale;
+
+/**
+ * Selects where spans and metrics are exported. The choice is written as stackdriver, memory,
+ * file:PATH or an http:// URL.
+ */
+final class ExporterChoice {
+  static final ExporterChoice STACKDRIVER = new ExporterChoice(Kind.STACKDRIVER, "");
+
+  /** The kind of exporter */
+  enum Kind {
+    /** Stackdriver Trace and Monitoring */
+    STACKDRIVER,
+    /** Records are encoded and kept in memory */
+    MEMORY,
+    /** Records are appended to a file */
+    FILE,
+    /** Records are posted to an HTTP endpoint, such as the client's ExporterStub program */
+    HTTP
+  }
+
+  private final Kind kind;
+  private final String target;
+
+  private ExporterChoice(Kind kind, String target) {
+    this.kind = kind;
+    this.target = target;
+  }
+
+  /**
+   * Parses an exporter choice.
+   *
+   * @param spec The choice as stackdriver, memory, file:PATH or an http:// URL
+   * @throws IllegalArgumentException If the spec cannot be parsed
+   */
+  static ExporterChoice parse(String spec) throws IllegalArgumentException {
+    if (spec.equals("stackdriver")) {
+      return STACKDRIVER;
+    }
+    if (spec.equals("memory")) {
+      return new ExporterChoice(Kind.MEMORY, "");
+    }
+    if (spec.startsWith("file:") && spec.length() > "file:".length()) {
+      return new ExporterChoice(Kind.FILE, spec.substring("file:".length()));
+    }
+    if (spec.startsWith("http://") && spec.length() > "http://".length()) {
+      return new ExporterChoice(Kind.HTTP, spec);
+    }
+    throw new IllegalArgumentException(
+        "Exporter must be stackdriver, memory, file:PATH or an http:// URL, got " + spec);
+  }
+
+  /** @return The kind of exporter */
+  Kind kind() {
+    return kind;
+  }
+
+  /** @return The file path or URL records are sent to, empty for the other kinds */
+  String target() {
+    return target;
+  }
+
+  @Override
+  public String toString() {
+    switch (kind) {
+      case FILE:
+        return "file:" + target;
+      case HTTP:
+        return target;
+      default:
+        return kind.toString().toLowerCase(Locale.ROOT);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reports the current load for load balancer weighting.
+ *
+ * <p>The response is a JSON object with the number of inflight requests, the p99 latency over the
+ * last 10 to 20 seconds, and a utilization score. The score is the larger of inflight / capacity
+ * and p99 / targetP99Ms. If maxUtilization is set and the score is above it the status is 503 so
+ * that traffic moves to less loaded servers. The response is formatted into thread local buffers
+ * so that polling the endpoint does not allocate.
+ *
+ * <p>Init parameters: capacity (default 200, the Jetty default thread pool size), targetP99Ms
+ * (optional), maxUtilization (optional).
+ */
+public class LoadServlet extends HttpServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadServlet.class);
+  private static final long serialVersionUID = 1L;
+  private static final int DEFAULT_CAPACITY = 200;
+  private static final int BUFFER_SIZE = 128;
+  private static final ThreadLocal<StringBuilder> BUILDER =
+      ThreadLocal.withInitial(() -> new StringBuilder(BUFFER_SIZE));
+  private static final ThreadLocal<char[]> CHARS =
+      ThreadLocal.withInitial(() -> new char[BUFFER_SIZE]);
+  private int capacity = DEFAULT_CAPACITY;
+  private double targetP99Ms = 0;
+  private double maxUtilization = 0;
+
+  @Override
+  public void init() throws ServletException {
+    capacity = (int) getNumber("capacity", DEFAULT_CAPACITY);
+    targetP99Ms = getNumber("targetP99Ms", 0);
+    maxUtilization = getNumber("maxUtilization", 0);
+    LOGGER.info(
+        "Load reporting with capacity "
+            + capacity
+            + ", targetP99Ms "
+            + targetP99Ms
+            + ", maxUtilization "
+            + maxUtilization);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    LoadTracker tracker = LoadTracker.get();
+    int inflight = tracker.inflight();
+    long p99Micros = tracker.percentileMicros(99.0);
+    double utilization = utilization(inflight, p99Micros);
+    boolean ready = maxUtilization <= 0 || utilization <= maxUtilization;
+
+    StringBuilder sb = BUILDER.get();
+    sb.setLength(0);
+    sb.append("{\"inflight\":").append(inflight);
+    sb.append(",\"p99_ms\":");
+    appendFixed(sb, p99Micros / 1000.0);
+    sb.append(",\"utilization\":");
+    appendFixed(sb, utilization);
+    sb.append(",\"ready\":").append(ready).append('}');
+    char[] chars = CHARS.get();
+    sb.getChars(0, sb.length(), chars, 0);
+
+    response.setStatus(
+        ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    response.setContentType("application/json");
+    PrintWriter pout = response.getWriter();
+    pout.write(chars, 0, sb.length());
+  }
+
+  // The utilization score, 1.0 being fully loaded.
+  double utilization(int inflight, long p99Micros) {
+    double utilization = (double) inflight / capacity;
+    if (targetP99Ms > 0) {
+      utilization = Math.max(utilization, p99Micros / 1000.0 / targetP99Ms);
+    }
+    return utilization;
+  }
+
+  // Appends a non-negative number with three decimal places without creating a String.
+  private static void appendFixed(StringBuilder sb, double value) {
+    long thousandths = Math.round(value * 1000.0);
+    sb.append(thousandths / 1000).append('.');
+    long fraction = thousandths % 1000;
+    if (fraction < 100) {
+      sb.append('0');
+    }
+    if (fraction < 10) {
+      sb.append('0');
+    }
+    sb.append(fraction);
+  }
+
+  private double getNumber(String name, double defaultValue) throws ServletException {
+    String value = getInitParameter(name);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new ServletException("Number format error parsing " + name + ": " + value, e);
+    }
+  }
+}
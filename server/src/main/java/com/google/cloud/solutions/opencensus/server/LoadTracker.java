@@ -0,0 +1,152 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the current load on the server with lock-free counters.
+ *
+ * <p>Latencies are kept in two exponential histograms that take turns covering fixed time windows,
+ * so the percentiles reflect the current and the previous window only. Recording and reading do
+ * not allocate, which keeps the load endpoint cheap enough to poll every second. A sample recorded
+ * at the exact moment a window rotates may be lost, which is acceptable for load reporting.
+ */
+class LoadTracker {
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final LoadTracker INSTANCE = new LoadTracker(WINDOW_NANOS);
+  // Exponential with growth factor of 1.25, starting at 10 us and reaching about 16 s.
+  private static final int NUM_BUCKETS = 64;
+  private static final double MIN_MICROS = 10.0;
+  private static final double GROWTH = 1.25;
+  private static final double LOG_GROWTH = Math.log(GROWTH);
+
+  private final long windowNanos;
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final AtomicLong epoch;
+  private final AtomicLongArray[] windows = {
+    new AtomicLongArray(NUM_BUCKETS), new AtomicLongArray(NUM_BUCKETS)
+  };
+
+  LoadTracker(long windowNanos) {
+    this.windowNanos = windowNanos;
+    this.epoch = new AtomicLong(System.nanoTime() / windowNanos);
+  }
+
+  /** @return The load tracker shared by the web application */
+  static LoadTracker get() {
+    return INSTANCE;
+  }
+
+  /** Marks the start of a request */
+  void begin() {
+    inflight.incrementAndGet();
+  }
+
+  /**
+   * Marks the end of a request.
+   *
+   * @param latencyNanos The time taken to serve the request
+   */
+  void end(long latencyNanos) {
+    inflight.decrementAndGet();
+    record(latencyNanos);
+  }
+
+  /** @return The number of requests being served */
+  int inflight() {
+    return inflight.get();
+  }
+
+  // Adds a latency to the histogram of the current window.
+  void record(long latencyNanos) {
+    long now = rotate(System.nanoTime() / windowNanos);
+    windows[(int) (now & 1)].incrementAndGet(bucketIndex(latencyNanos));
+  }
+
+  /**
+   * Gets a latency percentile over the current and previous window.
+   *
+   * @param percentile The percentile, between 0 and 100
+   * @return The upper bound of the bucket holding the percentile, in microseconds, or 0 if there
+   *     were no requests
+   */
+  long percentileMicros(double percentile) {
+    long nowEpoch = System.nanoTime() / windowNanos;
+    long lastEpoch = epoch.get();
+    long age = nowEpoch - lastEpoch;
+    if (age > 1) {
+      return 0;
+    }
+    AtomicLongArray current = windows[(int) (lastEpoch & 1)];
+    AtomicLongArray previous = age == 0 ? windows[(int) ((lastEpoch + 1) & 1)] : null;
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      total += current.get(i) + (previous == null ? 0 : previous.get(i));
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    long cumulative = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      cumulative += current.get(i) + (previous == null ? 0 : previous.get(i));
+      if (cumulative >= rank) {
+        return upperBoundMicros(i);
+      }
+    }
+    return upperBoundMicros(NUM_BUCKETS - 1);
+  }
+
+  // Moves to a new window if the epoch has changed, clearing the histogram being reused.
+  private long rotate(long nowEpoch) {
+    long lastEpoch = epoch.get();
+    while (nowEpoch > lastEpoch) {
+      if (epoch.compareAndSet(lastEpoch, nowEpoch)) {
+        clear(windows[(int) (nowEpoch & 1)]);
+        if (nowEpoch - lastEpoch > 1) {
+          clear(windows[(int) ((nowEpoch + 1) & 1)]);
+        }
+        return nowEpoch;
+      }
+      lastEpoch = epoch.get();
+    }
+    return lastEpoch;
+  }
+
+  private static void clear(AtomicLongArray window) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      window.set(i, 0);
+    }
+  }
+
+  private static int bucketIndex(long latencyNanos) {
+    double micros = latencyNanos / 1000.0;
+    if (micros <= MIN_MICROS) {
+      return 0;
+    }
+    int index = (int) Math.ceil(Math.log(micros / MIN_MICROS) / LOG_GROWTH);
+    return Math.min(index, NUM_BUCKETS - 1);
+  }
+
+  private static long upperBoundMicros(int index) {
+    return Math.round(MIN_MICROS * Math.pow(GROWTH, index));
+  }
+}
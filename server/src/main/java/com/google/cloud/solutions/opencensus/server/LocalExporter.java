@@ -0,0 +1,420 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import io.opencensus.common.Timestamp;
+import io.opencensus.metrics.LabelValue;
+import io.opencensus.metrics.Metrics;
+import io.opencensus.metrics.export.Distribution;
+import io.opencensus.metrics.export.Metric;
+import io.opencensus.metrics.export.MetricProducer;
+import io.opencensus.metrics.export.Point;
+import io.opencensus.metrics.export.TimeSeries;
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.BucketBoundaries;
+import io.opencensus.stats.Measure.MeasureDouble;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.StatsRecorder;
+import io.opencensus.stats.View;
+import io.opencensus.stats.View.Name;
+import io.opencensus.stats.ViewManager;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.Status;
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.export.SpanData;
+import io.opencensus.trace.export.SpanExporter.Handler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports spans and metrics without a cloud backend, for benchmarks on machines without cloud
+ * access.
+ *
+ * <p>Spans and metric points are encoded as compact tab separated records and written to a sink:
+ * kept in memory, appended to a file or posted to an HTTP endpoint such as the client's
+ * ExporterStub program. Spans pass through an export pipeline and metrics are read from the
+ * registered metric producers at a fixed interval, as the Stackdriver exporters do. The time taken
+ * to encode and write each batch, divided by the number of records, is recorded in the
+ * octail/server_export_span_cost and octail/server_export_point_cost views, so runs show the
+ * export overhead without a backend.
+ */
+class LocalExporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(LocalExporter.class);
+  private static final MeasureDouble M_SPAN_COST_US =
+      MeasureDouble.create("test_server/export_span_cost", "Time to export a span", "us");
+  private static final MeasureDouble M_POINT_COST_US =
+      MeasureDouble.create(
+          "test_server/export_point_cost", "Time to export a metric point", "us");
+  // Records kept by the memory sink
+  private static final int MEMORY_CAPACITY = 10000;
+  // How long closing waits for queued spans and for a metric export in progress
+  private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+  private static final StatsRecorder statsRecorder = Stats.getStatsRecorder();
+
+  /** Receives encoded records */
+  interface Sink extends Closeable {
+    /**
+     * Writes a batch of records.
+     *
+     * @param kind The kind of the records, spans or metrics
+     * @param records The encoded records
+     */
+    void write(String kind, List<String> records) throws IOException;
+  }
+
+  /** Keeps the most recent records in memory */
+  static final class MemorySink implements Sink {
+    private final Deque<String> records = new ArrayDeque<>();
+
+    @Override
+    public synchronized void write(String kind, List<String> batch) {
+      for (String record : batch) {
+        if (records.size() == MEMORY_CAPACITY) {
+          records.removeFirst();
+        }
+        records.addLast(record);
+      }
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /** Appends records to a file, one per line */
+  static final class FileSink implements Sink {
+    private final Writer writer;
+
+    FileSink(String path) throws IOException {
+      writer =
+          Files.newBufferedWriter(
+              Paths.get(path),
+              StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized void write(String kind, List<String> records) throws IOException {
+      for (String record : records) {
+        writer.write(record);
+        writer.write('\n');
+      }
+      writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /** Posts each batch of records to URL/kind as lines of text */
+  static final class HttpSink implements Sink {
+    private final String url;
+
+    HttpSink(String url) {
+      this.url = url.endsWith("/") ? url : url + "/";
+    }
+
+    @Override
+    public void write(String kind, List<String> records) throws IOException {
+      byte[] body = String.join("\n", records).getBytes(StandardCharsets.UTF_8);
+      HttpURLConnection connection = (HttpURLConnection) new URL(url + kind).openConnection();
+      try {
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(body);
+        }
+        int status = connection.getResponseCode();
+        if (status / 100 != 2) {
+          throw new IOException("Export to " + url + kind + " failed with status " + status);
+        }
+      } finally {
+        connection.disconnect();
+      }
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private final Sink sink;
+  private final PipelinedSpanHandler spanPipeline;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final ScheduledExecutorService metricReader =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "export-metrics");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          });
+
+  LocalExporter(Sink sink, ExportPipeline.Settings settings) {
+    this.sink = sink;
+    this.spanPipeline = new PipelinedSpanHandler(spanHandler(), settings);
+  }
+
+  /**
+   * Creates the sink for an exporter choice.
+   *
+   * @param choice The memory, file or HTTP exporter
+   * @throws IOException If the file cannot be opened
+   */
+  static Sink newSink(ExporterChoice choice) throws IOException {
+    switch (choice.kind()) {
+      case MEMORY:
+        return new MemorySink();
+      case FILE:
+        return new FileSink(choice.target());
+      case HTTP:
+        return new HttpSink(choice.target());
+      default:
+        throw new IllegalArgumentException("Not a local exporter " + choice);
+    }
+  }
+
+  /**
+   * Starts exporting spans and metrics to a local sink.
+   *
+   * <p>A shutdown hook flushes the spans buffered by OpenCensus and closes the exporter, so the
+   * last spans and metric values of a run reach the sink.
+   *
+   * @param choice The memory, file or HTTP exporter
+   * @param settings The span export pipeline settings
+   * @param intervalSeconds How often metrics are read and exported
+   * @throws IOException If the sink cannot be created
+   */
+  static LocalExporter start(
+      ExporterChoice choice, ExportPipeline.Settings settings, int intervalSeconds)
+      throws IOException {
+    LocalExporter exporter = new LocalExporter(newSink(choice), settings);
+    Tracing.getExportComponent()
+        .getSpanExporter()
+        .registerHandler(LocalExporter.class.getName(), exporter.spanPipeline);
+    exporter.metricReader.scheduleAtFixedRate(
+        exporter::exportMetrics, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  Tracing.getExportComponent().shutdown();
+                  exporter.close();
+                },
+                "export-close"));
+    LOGGER.info("Exporting to " + choice + ", metrics every " + intervalSeconds + " s");
+    return exporter;
+  }
+
+  /** Registers the views of the export cost metrics */
+  static void registerViews() {
+    // Exponential with growth factor of 2, from 1 us to about 8 s.
+    Aggregation costDist =
+        Aggregation.Distribution.create(
+            BucketBoundaries.create(new BucketLayout(2.0, 1.0, 1.0e7, 24, 1.0).boundaries()));
+    View[] views =
+        new View[] {
+          View.create(
+              Name.create("octail/server_export_span_cost"),
+              "Distribution of the time to encode and write a span",
+              M_SPAN_COST_US,
+              costDist,
+              Collections.emptyList()),
+          View.create(
+              Name.create("octail/server_export_point_cost"),
+              "Distribution of the time to encode and write a metric point",
+              M_POINT_COST_US,
+              costDist,
+              Collections.emptyList())
+        };
+    ViewManager vmgr = Stats.getViewManager();
+    for (View view : views) {
+      vmgr.registerView(view);
+    }
+  }
+
+  /** @return A handler that exports each batch of spans to the sink */
+  Handler spanHandler() {
+    return new Handler() {
+      @Override
+      public void export(Collection<SpanData> spanDataList) {
+        exportSpans(spanDataList);
+      }
+    };
+  }
+
+  void exportSpans(Collection<SpanData> spanDataList) {
+    if (spanDataList.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    List<String> records = new ArrayList<>(spanDataList.size());
+    for (SpanData spanData : spanDataList) {
+      records.add(encodeSpan(spanData));
+    }
+    write("spans", records, M_SPAN_COST_US, start);
+  }
+
+  void exportMetrics() {
+    long start = System.nanoTime();
+    List<String> records = new ArrayList<>();
+    for (MetricProducer producer :
+        Metrics.getExportComponent().getMetricProducerManager().getAllMetricProducer()) {
+      for (Metric metric : producer.getMetrics()) {
+        String name = metric.getMetricDescriptor().getName();
+        for (TimeSeries timeSeries : metric.getTimeSeriesList()) {
+          for (Point point : timeSeries.getPoints()) {
+            records.add(encodePoint(name, timeSeries.getLabelValues(), point));
+          }
+        }
+      }
+    }
+    if (!records.isEmpty()) {
+      write("metrics", records, M_POINT_COST_US, start);
+    }
+  }
+
+  // Writes a batch to the sink and records the cost per record since the start of encoding.
+  private void write(String kind, List<String> records, MeasureDouble costMeasure, long start) {
+    try {
+      sink.write(kind, records);
+    } catch (IOException e) {
+      LOGGER.warn("Error exporting " + kind + " " + e.getMessage());
+      return;
+    }
+    double costMicros = (System.nanoTime() - start) / 1000.0 / records.size();
+    statsRecorder.newMeasureMap().put(costMeasure, costMicros).record();
+  }
+
+  /**
+   * Encodes a span as S, trace id, span id, parent span id, name, start time and duration in
+   * nanoseconds, status, and the numbers of attributes, annotations and links, separated by tabs.
+   */
+  static String encodeSpan(SpanData spanData) {
+    SpanId parent = spanData.getParentSpanId();
+    Timestamp end = spanData.getEndTimestamp();
+    Status status = spanData.getStatus();
+    long startNanos = toNanos(spanData.getStartTimestamp());
+    return String.join(
+        "\t",
+        "S",
+        spanData.getContext().getTraceId().toLowerBase16(),
+        spanData.getContext().getSpanId().toLowerBase16(),
+        parent == null ? "-" : parent.toLowerBase16(),
+        clean(spanData.getName()),
+        Long.toString(startNanos),
+        Long.toString(end == null ? 0 : toNanos(end) - startNanos),
+        status == null ? "-" : status.getCanonicalCode().toString(),
+        Integer.toString(spanData.getAttributes().getAttributeMap().size()),
+        Integer.toString(spanData.getAnnotations().getEvents().size()),
+        Integer.toString(spanData.getLinks().getLinks().size()));
+  }
+
+  /**
+   * Encodes a metric point as M, metric name, comma separated label values, time in nanoseconds
+   * and value, separated by tabs. Distributions are written as count:sum:bucket counts separated
+   * by semicolons.
+   */
+  static String encodePoint(String name, List<LabelValue> labelValues, Point point) {
+    List<String> labels = new ArrayList<>(labelValues.size());
+    for (LabelValue labelValue : labelValues) {
+      labels.add(labelValue.getValue() == null ? "" : clean(labelValue.getValue()));
+    }
+    String value =
+        point
+            .getValue()
+            .match(
+                d -> Double.toString(d),
+                l -> Long.toString(l),
+                LocalExporter::encodeDistribution,
+                summary -> summary.getCount() + ":" + summary.getSum(),
+                other -> "-");
+    return String.join(
+        "\t",
+        "M",
+        clean(name),
+        String.join(",", labels),
+        Long.toString(toNanos(point.getTimestamp())),
+        value);
+  }
+
+  private static String encodeDistribution(Distribution distribution) {
+    StringBuilder buckets = new StringBuilder();
+    for (Distribution.Bucket bucket : distribution.getBuckets()) {
+      if (buckets.length() > 0) {
+        buckets.append(';');
+      }
+      buckets.append(bucket.getCount());
+    }
+    return distribution.getCount() + ":" + distribution.getSum() + ":" + buckets;
+  }
+
+  private static long toNanos(Timestamp timestamp) {
+    return TimeUnit.SECONDS.toNanos(timestamp.getSeconds()) + timestamp.getNanos();
+  }
+
+  // Keeps the separators out of names and label values.
+  private static String clean(String value) {
+    return value.replace('\t', ' ').replace('\n', ' ').replace(',', ' ');
+  }
+
+  /**
+   * Exports the spans queued in the pipeline, waiting up to a timeout, stops reading metrics,
+   * exports the metrics once more and closes the sink. Later calls do nothing.
+   */
+  void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      spanPipeline.close(CLOSE_TIMEOUT_MILLIS);
+      metricReader.shutdown();
+      metricReader.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    exportMetrics();
+    try {
+      sink.close();
+    } catch (IOException e) {
+      LOGGER.warn("Error closing export sink " + e.getMessage());
+    }
+  }
+}
@@ -23,18 +23,17 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.cloud.logging.LoggingHandler;
-import io.opencensus.contrib.http.util.HttpViews;
-import io.opencensus.exporter.stats.stackdriver.StackdriverStatsExporter;
-import io.opencensus.exporter.trace.stackdriver.StackdriverTraceConfiguration;
-import io.opencensus.exporter.trace.stackdriver.StackdriverTraceExporter;
-import io.opencensus.trace.Tracing;
-import io.opencensus.trace.config.TraceConfig;
-import io.opencensus.trace.samplers.Samplers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -46,64 +45,93 @@ public class OCTestServlet extends HttpServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(OCTestServlet.class);
   private static int NUM_COUNT = 1000;
   private static final long serialVersionUID = 1L;
+  // Concurrent GET requests with the same parameters share one generated response
+  private final transient SingleFlight<Map<String, List<String>>, byte[]> inFlight =
+      new SingleFlight<>(shared -> ServerInstrumentation.recordCoalesced("GET", shared));
+  private boolean coalesce = false;
 
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
+    long dispatchNanos = System.nanoTime();
+    double queueMs = ServerInstrumentation.queueTimeMs(request);
     response.setContentType("application/json");
     LOGGER.info("doGet");
-    PrintWriter pout = response.getWriter();
-    pout.print(generateJSON());
+    byte[] json =
+        coalesce ? inFlight.execute(requestKey(request), this::generateJSON) : generateJSON();
+    long writeNanos = System.nanoTime();
+    response.setContentLength(json.length);
+    OutputStream out = response.getOutputStream();
+    out.write(json);
+    out.flush();
+    ServerInstrumentation.recordPhases(
+        "GET",
+        queueMs,
+        toMillis(writeNanos - dispatchNanos),
+        toMillis(System.nanoTime() - writeNanos));
   }
 
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
+    long dispatchNanos = System.nanoTime();
+    double queueMs = ServerInstrumentation.queueTimeMs(request);
     // Read from request
     String data = request.getReader().lines().collect(joining(System.lineSeparator()));
     LOGGER.info("doPost data length: " + data.length());
     // Send it back
     response.setContentType("application/json");
-    PrintWriter pout = response.getWriter();
-    pout.print(data);
+    String encoding = response.getCharacterEncoding();
+    byte[] body =
+        data.getBytes(encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding));
+    long writeNanos = System.nanoTime();
+    // With the length set, flushing to time the write does not switch to chunked encoding
+    response.setContentLength(body.length);
+    OutputStream out = response.getOutputStream();
+    out.write(body);
+    out.flush();
+    ServerInstrumentation.recordPhases(
+        "POST",
+        queueMs,
+        toMillis(writeNanos - dispatchNanos),
+        toMillis(System.nanoTime() - writeNanos));
+  }
+
+  // Normalizes the request parameters, so that requests differing only in parameter order match.
+  static Map<String, List<String>> requestKey(HttpServletRequest request) {
+    Map<String, List<String>> key = new TreeMap<>();
+    Map<String, String[]> params = request.getParameterMap();
+    if (params != null) {
+      for (Map.Entry<String, String[]> param : params.entrySet()) {
+        key.put(param.getKey(), Arrays.asList(param.getValue()));
+      }
+    }
+    return key;
   }
 
   // Generate sample JSON daata
-  private String generateJSON() {
+  private byte[] generateJSON() {
     JsonArray numbers = new JsonArray();
     for (int i = 1; i <= NUM_COUNT - 1; i++) {
       numbers.add(i);
     }
     JsonObject root = new JsonObject();
     root.add("numbers", numbers);
-    return new Gson().toJson(root);
+    return new Gson().toJson(root).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1.0e6;
   }
 
   @Override
   public void init() throws ServletException {
+    coalesce = "true".equals(getServletContext().getInitParameter("octail.coalesce_gets"));
     try {
-      initStatsExporter();
-      initTracing();
+      ServerInstrumentation.init(getServletContext());
       LOGGER.info("init tracing and stats initialized");
     } catch (IOException e) {
       LOGGER.error( "Could not initialize Stackdriver exporter", e );
     }
   }
-
-  // Register the views and Stackdriver exporter.
-  private static void initStatsExporter() throws IOException {
-    HttpViews.registerAllServerViews();
-    StackdriverStatsExporter.createAndRegister();
-  }
-
-  private static void initTracing() {
-    TraceConfig traceConfig = Tracing.getTraceConfig();
-    traceConfig.updateActiveTraceParams(
-        traceConfig.getActiveTraceParams().toBuilder().setSampler(Samplers.alwaysSample()).build());
-    try {
-      StackdriverTraceExporter.createAndRegister(StackdriverTraceConfiguration.builder().build());
-    } catch (IOException e) {
-      LOGGER.error( "Could not initialize tracing", e );
-    }
-  }
 }
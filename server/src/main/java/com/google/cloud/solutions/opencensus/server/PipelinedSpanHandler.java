@@ -0,0 +1,85 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.export.SpanData;
+import io.opencensus.trace.export.SpanExporter;
+import io.opencensus.trace.export.SpanExporter.Handler;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Span handler that passes spans to another handler through an export pipeline */
+class PipelinedSpanHandler extends Handler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PipelinedSpanHandler.class);
+  private final ExportPipeline<SpanData> pipeline;
+
+  PipelinedSpanHandler(Handler delegate, ExportPipeline.Settings settings) {
+    this.pipeline = new ExportPipeline<>("spans", settings, delegate::export);
+  }
+
+  @Override
+  public void export(Collection<SpanData> spanDataList) {
+    for (SpanData spanData : spanDataList) {
+      pipeline.offer(spanData);
+    }
+  }
+
+  /**
+   * Stops the pipeline after the spans already queued are exported.
+   *
+   * @param timeoutMillis How long to wait for the queued spans
+   */
+  void close(long timeoutMillis) throws InterruptedException {
+    pipeline.close(timeoutMillis);
+  }
+
+  /**
+   * Moves the handler registered by an exporter behind an export pipeline.
+   *
+   * <p>Exporters such as StackdriverTraceExporter register their handler under their class name
+   * and keep it in a private static field named handler, which is read reflectively. If the
+   * handler cannot be found the exporter is left as it is.
+   *
+   * @param exporterClass The class of the exporter that registered the handler
+   * @param settings The queue and batch sizes and the drop policy
+   * @return true if the handler was wrapped
+   */
+  static boolean wrap(Class<?> exporterClass, ExportPipeline.Settings settings) {
+    Handler delegate;
+    try {
+      Field field = exporterClass.getDeclaredField("handler");
+      field.setAccessible(true);
+      delegate = (Handler) field.get(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOGGER.warn("Exporting spans directly, no handler found " + e.getMessage());
+      return false;
+    }
+    if (delegate == null) {
+      LOGGER.warn("Exporting spans directly, " + exporterClass.getName() + " not registered");
+      return false;
+    }
+    SpanExporter spanExporter = Tracing.getExportComponent().getSpanExporter();
+    spanExporter.unregisterHandler(exporterClass.getName());
+    spanExporter.registerHandler(
+        exporterClass.getName(), new PipelinedSpanHandler(delegate, settings));
+    LOGGER.info("Exporting spans through a pipeline with " + settings);
+    return true;
+  }
+}
@@ -0,0 +1,342 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import io.opencensus.common.Scope;
+import io.opencensus.contrib.http.util.HttpViews;
+import io.opencensus.exporter.stats.stackdriver.StackdriverStatsExporter;
+import io.opencensus.exporter.trace.stackdriver.StackdriverTraceConfiguration;
+import io.opencensus.exporter.trace.stackdriver.StackdriverTraceExporter;
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.Aggregation.Distribution;
+import io.opencensus.stats.BucketBoundaries;
+import io.opencensus.stats.Measure.MeasureDouble;
+import io.opencensus.stats.MeasureMap;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.StatsRecorder;
+import io.opencensus.stats.View;
+import io.opencensus.stats.View.Name;
+import io.opencensus.stats.ViewManager;
+import io.opencensus.tags.TagContext;
+import io.opencensus.tags.TagKey;
+import io.opencensus.tags.TagValue;
+import io.opencensus.tags.Tagger;
+import io.opencensus.tags.Tags;
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.config.TraceConfig;
+import io.opencensus.trace.samplers.Samplers;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encapsulates the server side instrumentation.
+ *
+ * <p>The OcHttpServletFilter only reports the total server latency. The phase measures here split
+ * that into the time the request waited before the servlet was dispatched, the time spent in the
+ * servlet body, and the time spent writing and flushing the response.
+ */
+public class ServerInstrumentation {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ServerInstrumentation.class);
+  private static final TagKey KEY_METHOD = TagKey.create("method");
+  private static final MeasureDouble M_QUEUE_MS =
+      MeasureDouble.create(
+          "test_server/queue_time",
+          "Time from request parse to servlet dispatch, to the nearest ms",
+          "ms");
+  private static final MeasureDouble M_SERVICE_MS =
+      MeasureDouble.create(
+          "test_server/service_time",
+          "Time spent in the servlet reading, generating or echoing the payload",
+          "ms");
+  private static final MeasureDouble M_WRITE_MS =
+      MeasureDouble.create(
+          "test_server/write_time", "Time spent writing and flushing the response", "ms");
+  private static final MeasureDouble M_WARMUP_LATENCY_MS =
+      MeasureDouble.create(
+          "test_server/warmup_latency", "Latency of requests served during warmup", "ms");
+  private static final MeasureDouble M_COALESCED =
+      MeasureDouble.create(
+          "test_server/coalesced", "1 if a request shared the result of another, else 0", "1");
+  private static final int WARMUP_MAX_SECONDS = 300;
+  private static final int METRICS_INTERVAL = 60; // seconds
+  // Exponential with growth factor of 1.25, starting at 0.1 ms.
+  private static final double BUCKET_GROWTH = 1.25;
+  private static final double BUCKET_MIN = 0.1;
+  private static final double BUCKET_MAX = 60000.0;
+  private static final int BUCKET_COUNT = 60;
+  private static final double BUCKET_RESOLUTION = 0.01;
+  private static final Tagger tagger = Tags.getTagger();
+  private static final StatsRecorder statsRecorder = Stats.getStatsRecorder();
+
+  // Jetty's Request.getTimeStamp(), looked up reflectively because Jetty hides its server classes
+  // from web applications.
+  private static final ClassValue<Method> TIMESTAMP_METHOD =
+      new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+          try {
+            return type.getMethod("getTimeStamp");
+          } catch (NoSuchMethodException e) {
+            return null;
+          }
+        }
+      };
+
+  private static WarmupPhase warmup = new WarmupPhase(0, 0, 0.0, 0, () -> {});
+
+  /**
+   * Initializes tracing, monitoring and the warmup phase.
+   *
+   * <p>The warmup phase is configured with the context parameters octail.warmup_requests,
+   * octail.warmup_seconds, octail.steady_state_tolerance and octail.warmup_max_seconds. Requests
+   * served during warmup are recorded in octail/server_warmup_latency instead of the phase views.
+   * The bucket layout of the phase views is configured with octail.bucket_growth,
+   * octail.bucket_min, octail.bucket_max, octail.bucket_count and octail.bucket_resolution. Spans
+   * are exported through a pipeline configured with octail.export_queue, octail.export_batch,
+   * octail.export_delay_ms and octail.export_drop (oldest or newest). The exporter is selected
+   * with octail.exporter: stackdriver, or for runs without cloud access memory, file:PATH or an
+   * http:// URL, with metrics exported every octail.metrics_interval_seconds.
+   *
+   * @param context The servlet context holding the configuration
+   */
+  static void init(ServletContext context) throws IOException {
+    initWarmup(context);
+    ExporterChoice exporter = exporterChoice(context);
+    initStats(bucketLayout(context), exporter);
+    initTracing(
+        exportSettings(context),
+        exporter,
+        getInt(context, "octail.metrics_interval_seconds", METRICS_INTERVAL));
+  }
+
+  private static ExporterChoice exporterChoice(ServletContext context) {
+    String exporter = context.getInitParameter("octail.exporter");
+    if (exporter == null || exporter.isEmpty()) {
+      return ExporterChoice.STACKDRIVER;
+    }
+    return ExporterChoice.parse(exporter);
+  }
+
+  private static ExportPipeline.Settings exportSettings(ServletContext context) {
+    ExportPipeline.Settings defaults = ExportPipeline.Settings.DEFAULT;
+    String drop = context.getInitParameter("octail.export_drop");
+    ExportPipeline.DropPolicy dropPolicy = defaults.dropPolicy;
+    if (drop != null && !drop.isEmpty()) {
+      try {
+        dropPolicy = ExportPipeline.DropPolicy.valueOf(drop.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        LOGGER.warn("Unknown octail.export_drop " + drop + ", using " + dropPolicy);
+      }
+    }
+    return new ExportPipeline.Settings(
+        getInt(context, "octail.export_queue", defaults.capacity),
+        getInt(context, "octail.export_batch", defaults.batchSize),
+        getInt(context, "octail.export_delay_ms", (int) defaults.batchDelayMillis),
+        dropPolicy);
+  }
+
+  private static BucketLayout bucketLayout(ServletContext context) {
+    BucketLayout layout =
+        new BucketLayout(
+            getDouble(context, "octail.bucket_growth", BUCKET_GROWTH),
+            getDouble(context, "octail.bucket_min", BUCKET_MIN),
+            getDouble(context, "octail.bucket_max", BUCKET_MAX),
+            getInt(context, "octail.bucket_count", BUCKET_COUNT),
+            getDouble(context, "octail.bucket_resolution", BUCKET_RESOLUTION));
+    LOGGER.info("Phase buckets " + layout);
+    return layout;
+  }
+
+  private static void initWarmup(ServletContext context) {
+    int requests = getInt(context, "octail.warmup_requests", 0);
+    int seconds = getInt(context, "octail.warmup_seconds", 0);
+    double tolerance = getDouble(context, "octail.steady_state_tolerance", 0.0);
+    int maxSeconds = getInt(context, "octail.warmup_max_seconds", WARMUP_MAX_SECONDS);
+    LOGGER.info(
+        "Warmup for " + requests + " requests, " + seconds + " s, steady state " + tolerance);
+    warmup = new WarmupPhase(requests, seconds, tolerance, maxSeconds, () -> {});
+  }
+
+  private static int getInt(ServletContext context, String name, int defaultValue) {
+    return (int) getDouble(context, name, defaultValue);
+  }
+
+  private static double getDouble(ServletContext context, String name, double defaultValue) {
+    String value = context.getInitParameter(name);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Number format error parsing " + name + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  // Register the views and Stackdriver exporter.
+  private static void initStats(BucketLayout layout, ExporterChoice exporter)
+      throws IOException {
+    Aggregation phaseDist = Distribution.create(BucketBoundaries.create(layout.boundaries()));
+    List<TagKey> columns = Collections.unmodifiableList(Arrays.asList(KEY_METHOD));
+    View[] views =
+        new View[] {
+          View.create(
+              Name.create("octail/server_queue_time"),
+              "Distribution of time waiting for servlet dispatch, with millisecond resolution",
+              M_QUEUE_MS,
+              phaseDist,
+              columns),
+          View.create(
+              Name.create("octail/server_service_time"),
+              "Distribution of time spent in the servlet body",
+              M_SERVICE_MS,
+              phaseDist,
+              columns),
+          View.create(
+              Name.create("octail/server_write_time"),
+              "Distribution of time writing the response",
+              M_WRITE_MS,
+              phaseDist,
+              columns),
+          View.create(
+              Name.create("octail/server_warmup_latency"),
+              "Distribution of latencies during warmup",
+              M_WARMUP_LATENCY_MS,
+              phaseDist,
+              columns),
+          // The mean of the distribution is the fraction of requests that were coalesced
+          View.create(
+              Name.create("octail/server_coalesced"),
+              "Distribution of requests sharing the result of another request",
+              M_COALESCED,
+              Distribution.create(BucketBoundaries.create(Collections.singletonList(0.5))),
+              columns)
+        };
+    ViewManager vmgr = Stats.getViewManager();
+    for (View view : views) {
+      vmgr.registerView(view);
+    }
+    ExportPipeline.registerViews();
+    HttpViews.registerAllServerViews();
+    if (exporter.kind() == ExporterChoice.Kind.STACKDRIVER) {
+      StackdriverStatsExporter.createAndRegister();
+    } else {
+      LocalExporter.registerViews();
+    }
+  }
+
+  // Initializes the trace exporter, exporting spans through a pipeline. A local exporter also
+  // exports the metrics.
+  private static void initTracing(
+      ExportPipeline.Settings exportSettings, ExporterChoice exporter, int metricsInterval)
+      throws IOException {
+    TraceConfig traceConfig = Tracing.getTraceConfig();
+    traceConfig.updateActiveTraceParams(
+        traceConfig.getActiveTraceParams().toBuilder().setSampler(Samplers.alwaysSample()).build());
+    if (exporter.kind() != ExporterChoice.Kind.STACKDRIVER) {
+      LocalExporter.start(exporter, exportSettings, metricsInterval);
+      return;
+    }
+    try {
+      StackdriverTraceExporter.createAndRegister(StackdriverTraceConfiguration.builder().build());
+      PipelinedSpanHandler.wrap(StackdriverTraceExporter.class, exportSettings);
+    } catch (IOException e) {
+      LOGGER.error("Could not initialize tracing", e);
+    }
+  }
+
+  /**
+   * Gets the time the request waited between being parsed by Jetty and being dispatched to the
+   * servlet.
+   *
+   * <p>Jetty 9.4 only keeps the time a request was parsed in milliseconds, from
+   * System.currentTimeMillis(), so the queue time is a whole number of milliseconds and a
+   * request that waited under a millisecond reads as 0 or 1 ms. Only queue times of several
+   * milliseconds, when requests wait for a Jetty thread, are resolved.
+   *
+   * @param request The request being served
+   * @return The queue time in milliseconds, or -1 if the container does not expose it
+   */
+  static double queueTimeMs(ServletRequest request) {
+    while (request instanceof ServletRequestWrapper) {
+      request = ((ServletRequestWrapper) request).getRequest();
+    }
+    Method getTimeStamp = TIMESTAMP_METHOD.get(request.getClass());
+    if (getTimeStamp == null) {
+      return -1;
+    }
+    try {
+      Object timeStamp = getTimeStamp.invoke(request);
+      if (!(timeStamp instanceof Long) || (Long) timeStamp <= 0) {
+        return -1;
+      }
+      return Math.max(0, System.currentTimeMillis() - (Long) timeStamp);
+    } catch (ReflectiveOperationException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Records the phases of a single request, or its total latency if it was served during warmup.
+   *
+   * @param method The HTTP method of the request
+   * @param queueMs Time waiting for dispatch, negative if not known
+   * @param serviceMs Time spent in the servlet body
+   * @param writeMs Time spent writing and flushing the response
+   */
+  static void recordPhases(String method, double queueMs, double serviceMs, double writeMs) {
+    TagContext tctx = tagger.emptyBuilder().put(KEY_METHOD, TagValue.create(method)).build();
+    double totalMs = Math.max(queueMs, 0) + serviceMs + writeMs;
+    try (Scope ss = tagger.withTagContext(tctx)) {
+      if (!warmup.record(totalMs)) {
+        statsRecorder.newMeasureMap().put(M_WARMUP_LATENCY_MS, totalMs).record();
+        return;
+      }
+      MeasureMap measureMap =
+          statsRecorder.newMeasureMap().put(M_SERVICE_MS, serviceMs).put(M_WRITE_MS, writeMs);
+      if (queueMs >= 0) {
+        measureMap.put(M_QUEUE_MS, queueMs);
+      }
+      measureMap.record();
+    }
+  }
+
+  /**
+   * Records whether a request was coalesced with another identical request.
+   *
+   * @param method The HTTP method of the request
+   * @param shared True if the request shared the result of another request
+   */
+  static void recordCoalesced(String method, boolean shared) {
+    // Like the phase views, the fraction coalesced only covers requests served after warmup
+    if (!warmup.isMeasuring()) {
+      return;
+    }
+    TagContext tctx = tagger.emptyBuilder().put(KEY_METHOD, TagValue.create(method)).build();
+    statsRecorder.newMeasureMap().put(M_COALESCED, shared ? 1.0 : 0.0).record(tctx);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import io.opencensus.trace.Link;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.Tracer;
+import io.opencensus.trace.Tracing;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical requests into a single computation.
+ *
+ * <p>The first request for a key becomes the leader and computes the result. Requests for the
+ * same key that arrive while the leader is still computing wait for its result instead of
+ * computing their own. Each waiting request keeps its own span, with a link to the leader's span
+ * so that the trace shows where the work was done. A key is only coalesced while its computation
+ * is in flight: the result is not cached, so a request arriving after the leader finished starts
+ * a new computation.
+ */
+class SingleFlight<K, V> {
+  private static final Tracer tracer = Tracing.getTracer();
+
+  // A computation in flight, with the span of the request computing it.
+  private static class Flight<V> {
+    final Span leader;
+    final CompletableFuture<V> result = new CompletableFuture<>();
+    final AtomicInteger followers = new AtomicInteger();
+
+    Flight(Span leader) {
+      this.leader = leader;
+    }
+  }
+
+  private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+  private final Consumer<Boolean> recorder;
+
+  /**
+   * Creates a coalescing layer.
+   *
+   * @param recorder Called for each request with true if it shared another request's result
+   */
+  SingleFlight(Consumer<Boolean> recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * Gets the result for a key, computing it unless a computation for the key is in flight.
+   *
+   * @param key The normalized request
+   * @param work Computes the result
+   * @return The result, shared with all the requests coalesced with this one
+   */
+  V execute(K key, Supplier<V> work) {
+    Span span = tracer.getCurrentSpan();
+    Flight<V> flight = new Flight<>(span);
+    // Followers are counted inside compute, which is atomic with the leader's remove, so the
+    // leader reads the count only after every follower of its flight has been counted
+    Flight<V> leading =
+        flights.compute(
+            key,
+            (k, current) -> {
+              if (current == null) {
+                return flight;
+              }
+              current.followers.incrementAndGet();
+              return current;
+            });
+    if (leading != flight) {
+      span.addLink(
+          Link.fromSpanContext(leading.leader.getContext(), Link.Type.PARENT_LINKED_SPAN));
+      recorder.accept(true);
+      try {
+        return leading.result.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+    recorder.accept(false);
+    try {
+      V value = work.get();
+      flight.result.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      flight.result.completeExceptionally(e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+      int followers = flight.followers.get();
+      if (followers > 0) {
+        span.addAnnotation("Shared result with " + followers + " coalesced requests");
+      }
+    }
+  }
+
+  /** @return The number of computations in flight */
+  int inFlight() {
+    return flights.size();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+Copyright 2019 Google LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when the warmup phase of a run ends and the measured phase starts.
+ *
+ * <p>JIT compilation and class loading distort the first requests served after a restart.
+ * Warmup lasts for at least a given number of requests and seconds. With steady state detection
+ * it then continues until the throughput and mean latency of the last few one second windows vary
+ * by no more than a tolerance, or until a maximum warmup time has passed.
+ */
+class WarmupPhase {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WarmupPhase.class);
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // Number of consecutive windows that must agree for a steady state
+  private static final int STABLE_WINDOWS = 3;
+
+  private final long minRequests;
+  private final long minNanos;
+  private final double tolerance;
+  private final long maxNanos;
+  private final Runnable onMeasured;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder windowCount = new LongAdder();
+  private final DoubleAdder windowSum = new DoubleAdder();
+  private final double[] throughputs = new double[STABLE_WINDOWS];
+  private final double[] means = new double[STABLE_WINDOWS];
+  private final long startNanos;
+  private volatile long windowEnd;
+  private int windows;
+  private volatile boolean measuring;
+
+  /**
+   * Creates a warmup phase starting now.
+   *
+   * @param minRequests Minimum number of requests in warmup
+   * @param minSeconds Minimum duration of warmup
+   * @param tolerance Allowed relative spread of throughput and latency in the steady state, 0 to
+   *     not wait for a steady state
+   * @param maxSeconds Maximum duration of warmup when waiting for a steady state
+   * @param onMeasured Called once when the measured phase starts
+   */
+  WarmupPhase(
+      long minRequests, int minSeconds, double tolerance, int maxSeconds, Runnable onMeasured) {
+    this.minRequests = minRequests;
+    this.minNanos = TimeUnit.SECONDS.toNanos(minSeconds);
+    this.tolerance = tolerance;
+    this.maxNanos = TimeUnit.SECONDS.toNanos(maxSeconds);
+    this.onMeasured = onMeasured;
+    this.startNanos = System.nanoTime();
+    this.windowEnd = startNanos + WINDOW_NANOS;
+    if (minRequests <= 0 && minSeconds <= 0 && tolerance <= 0) {
+      measuring = true;
+      onMeasured.run();
+    }
+  }
+
+  /** @return True once warmup has ended */
+  boolean isMeasuring() {
+    return measuring;
+  }
+
+  /**
+   * Records a completed request.
+   *
+   * @param latencyMs The latency of the request in milliseconds
+   * @return True if the request belongs to the measured phase, false if it is part of warmup
+   */
+  boolean record(double latencyMs) {
+    if (measuring) {
+      return true;
+    }
+    requests.increment();
+    windowCount.increment();
+    windowSum.add(latencyMs);
+    long now = System.nanoTime();
+    if (now >= windowEnd) {
+      endWindow(now);
+    } else if (tolerance <= 0 && warmupDone(now)) {
+      startMeasuring(now);
+    }
+    return false;
+  }
+
+  private synchronized void endWindow(long now) {
+    if (measuring || now < windowEnd) {
+      return;
+    }
+    long count = windowCount.sumThenReset();
+    double sum = windowSum.sumThenReset();
+    double seconds = (now - windowEnd + WINDOW_NANOS) / (double) TimeUnit.SECONDS.toNanos(1);
+    throughputs[windows % STABLE_WINDOWS] = count / seconds;
+    means[windows % STABLE_WINDOWS] = count == 0 ? 0 : sum / count;
+    windows++;
+    windowEnd = now + WINDOW_NANOS;
+    if (!warmupDone(now)) {
+      return;
+    }
+    if (tolerance <= 0) {
+      startMeasuring(now);
+    } else if (windows >= STABLE_WINDOWS && isStable(throughputs) && isStable(means)) {
+      LOGGER.info("Steady state detected");
+      startMeasuring(now);
+    } else if (now - startNanos >= maxNanos) {
+      LOGGER.warn("No steady state after maximum warmup time, starting measurement");
+      startMeasuring(now);
+    }
+  }
+
+  private boolean warmupDone(long now) {
+    return requests.sum() >= minRequests && now - startNanos >= minNanos;
+  }
+
+  // True if the spread of the values is within the tolerance of their mean.
+  private boolean isStable(double[] values) {
+    double min = Double.MAX_VALUE;
+    double max = 0;
+    double sum = 0;
+    for (double value : values) {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+    }
+    double mean = sum / values.length;
+    return mean > 0 && (max - min) / mean <= tolerance;
+  }
+
+  private synchronized void startMeasuring(long now) {
+    if (measuring) {
+      return;
+    }
+    measuring = true;
+    LOGGER.info(
+        "Warmup ended after "
+            + requests.sum()
+            + " requests and "
+            + TimeUnit.NANOSECONDS.toMillis(now - startNanos)
+            + " ms");
+    onMeasured.run();
+  }
+}
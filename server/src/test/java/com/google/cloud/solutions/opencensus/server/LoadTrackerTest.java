@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/** Unit testing for class LoadTracker */
+public class LoadTrackerTest {
+  private static final long WINDOW_NANOS = TimeUnit.HOURS.toNanos(1);
+
+  /** Test that inflight requests are counted. */
+  @Test
+  public void inflightCounted() {
+    LoadTracker tracker = new LoadTracker(WINDOW_NANOS);
+    tracker.begin();
+    tracker.begin();
+    assertEquals(2, tracker.inflight());
+    tracker.end(TimeUnit.MILLISECONDS.toNanos(1));
+    assertEquals(1, tracker.inflight());
+  }
+
+  /** Test that the p99 is within one bucket of the exact value. */
+  @Test
+  public void p99WithinBucket() {
+    LoadTracker tracker = new LoadTracker(WINDOW_NANOS);
+    for (int i = 1; i <= 1000; i++) {
+      tracker.record(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    double p99Ms = tracker.percentileMicros(99.0) / 1000.0;
+    assertTrue(p99Ms >= 990.0, "p99 too low: " + p99Ms);
+    assertTrue(p99Ms <= 990.0 * 1.25, "p99 too high: " + p99Ms);
+  }
+
+  /** Test that an idle tracker reports no latency. */
+  @Test
+  public void emptyIsZero() {
+    LoadTracker tracker = new LoadTracker(WINDOW_NANOS);
+    assertEquals(0, tracker.percentileMicros(99.0));
+  }
+}
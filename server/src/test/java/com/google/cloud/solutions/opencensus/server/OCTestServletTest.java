@@ -17,16 +17,23 @@
 package com.google.cloud.solutions.opencensus.server;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.Test;
@@ -34,29 +41,65 @@ import org.junit.jupiter.api.Test;
 /** Unit testing for class OCTestServlet */
 public class OCTestServletTest {
 
+  // Collects the bytes written to a response
+  private static class BufferOutputStream extends ServletOutputStream {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      buffer.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {}
+  }
+
   /** Test that the doGet method returns valid JSON. */
   @Test
   public void doGetValidJson() throws Exception {
     HttpServletRequest request = mock(HttpServletRequest.class);
     HttpServletResponse response = mock(HttpServletResponse.class);
-    StringWriter sw = new StringWriter();
-    PrintWriter pw = new PrintWriter(sw);
-    when(response.getWriter()).thenReturn(pw);
+    BufferOutputStream out = new BufferOutputStream();
+    when(response.getOutputStream()).thenReturn(out);
     OCTestServlet servlet = new OCTestServlet();
     servlet.doGet(request, response);
-    String resStr = sw.getBuffer().toString().trim();
+    String resStr = new String(out.buffer.toByteArray(), StandardCharsets.UTF_8).trim();
     Gson gson = new Gson();
     Object validJson = gson.fromJson(resStr, Object.class);
   }
 
+  /** Test that requests differing only in parameter order have the same key. */
+  @Test
+  public void requestKeyIgnoresParameterOrder() {
+    Map<String, String[]> first = new HashMap<>();
+    first.put("a", new String[] {"1"});
+    first.put("b", new String[] {"2", "3"});
+    Map<String, String[]> second = new HashMap<>();
+    second.put("b", new String[] {"2", "3"});
+    second.put("a", new String[] {"1"});
+    HttpServletRequest firstRequest = mock(HttpServletRequest.class);
+    when(firstRequest.getParameterMap()).thenReturn(first);
+    HttpServletRequest secondRequest = mock(HttpServletRequest.class);
+    when(secondRequest.getParameterMap()).thenReturn(second);
+    HttpServletRequest emptyRequest = mock(HttpServletRequest.class);
+    when(emptyRequest.getParameterMap()).thenReturn(Collections.emptyMap());
+    assertEquals(OCTestServlet.requestKey(firstRequest), OCTestServlet.requestKey(secondRequest));
+    assertNotEquals(
+        OCTestServlet.requestKey(firstRequest), OCTestServlet.requestKey(emptyRequest));
+  }
+
   /** Test that the doPost method returns the same JSON string as was sent to it. */
   @Test
   public void doPostSameBack() throws Exception {
     HttpServletRequest request = mock(HttpServletRequest.class);
     HttpServletResponse response = mock(HttpServletResponse.class);
-    StringWriter sw = new StringWriter();
-    PrintWriter pw = new PrintWriter(sw);
-    when(response.getWriter()).thenReturn(pw);
+    BufferOutputStream out = new BufferOutputStream();
+    when(response.getOutputStream()).thenReturn(out);
     JsonArray numbers = new JsonArray();
     for (int i = 1; i <= 3; i++) {
       numbers.add(i);
@@ -68,7 +111,8 @@ public class OCTestServletTest {
     when(request.getReader()).thenReturn(r);
     OCTestServlet servlet = new OCTestServlet();
     servlet.doPost(request, response);
-    String resStr = sw.getBuffer().toString().trim();
+    String resStr = new String(out.buffer.toByteArray(), StandardCharsets.ISO_8859_1);
     assertEquals(jsonStr, resStr);
+    verify(response).setContentLength(jsonStr.length());
   }
 }
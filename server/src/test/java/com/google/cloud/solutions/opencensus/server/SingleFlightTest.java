@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.opencensus.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.opencensus.common.Scope;
+import io.opencensus.trace.Annotation;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.EndSpanOptions;
+import io.opencensus.trace.Link;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.Tracing;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.Test;
+
+/** Unit testing for class SingleFlight */
+public class SingleFlightTest {
+
+  // Keeps the annotations added to it, to read the number of requests a leader shared with
+  private static class AnnotatedSpan extends Span {
+    final List<String> annotations = new ArrayList<>();
+
+    AnnotatedSpan() {
+      super(SpanContext.INVALID, null);
+    }
+
+    @Override
+    public void addAnnotation(String description, Map<String, AttributeValue> attributes) {
+      annotations.add(description);
+    }
+
+    @Override
+    public void addAnnotation(Annotation annotation) {
+      annotations.add(annotation.getDescription());
+    }
+
+    @Override
+    public void addLink(Link link) {}
+
+    @Override
+    public void end(EndSpanOptions options) {}
+  }
+
+  /** Test that concurrent requests for a key share one computation. */
+  @Test
+  public void concurrentRequestsShareResult() throws Exception {
+    LongAdder shared = new LongAdder();
+    SingleFlight<String, byte[]> flight =
+        new SingleFlight<>(
+            s -> {
+              if (s) {
+                shared.increment();
+              }
+            });
+    AtomicInteger computed = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    byte[] result = new byte[] {1, 2, 3};
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    List<Future<byte[]>> futures = new ArrayList<>();
+    futures.add(
+        pool.submit(
+            () ->
+                flight.execute(
+                    "key",
+                    () -> {
+                      computed.incrementAndGet();
+                      started.countDown();
+                      try {
+                        release.await();
+                      } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                      }
+                      return result;
+                    })));
+    started.await();
+    for (int i = 0; i < 3; i++) {
+      futures.add(
+          pool.submit(
+              () ->
+                  flight.execute(
+                      "key",
+                      () -> {
+                        computed.incrementAndGet();
+                        return new byte[0];
+                      })));
+    }
+    while (shared.sum() < 3) {
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+    release.countDown();
+    for (Future<byte[]> future : futures) {
+      assertSame(result, future.get(1, TimeUnit.SECONDS));
+    }
+    pool.shutdown();
+    assertEquals(1, computed.get());
+    assertEquals(0, flight.inFlight());
+  }
+
+  /** Test that leaders count every request that shared their result. */
+  @Test
+  public void leadersCountAllFollowers() throws Exception {
+    LongAdder shared = new LongAdder();
+    SingleFlight<String, Integer> flight =
+        new SingleFlight<>(
+            s -> {
+              if (s) {
+                shared.increment();
+              }
+            });
+    ConcurrentLinkedQueue<AnnotatedSpan> spans = new ConcurrentLinkedQueue<>();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(
+          pool.submit(
+              () -> {
+                for (int j = 0; j < 2000; j++) {
+                  AnnotatedSpan span = new AnnotatedSpan();
+                  spans.add(span);
+                  try (Scope scope = Tracing.getTracer().withSpan(span)) {
+                    flight.execute("key", () -> 1);
+                  }
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    pool.shutdown();
+    long counted = 0;
+    for (AnnotatedSpan span : spans) {
+      for (String annotation : span.annotations) {
+        counted += Long.parseLong(annotation.replaceAll("\\D", ""));
+      }
+    }
+    assertEquals(shared.sum(), counted);
+  }
+
+  /** Test that a key is computed again once its computation has finished. */
+  @Test
+  public void finishedKeyIsComputedAgain() {
+    SingleFlight<String, Integer> flight = new SingleFlight<>(s -> {});
+    AtomicInteger computed = new AtomicInteger();
+    flight.execute("key", computed::incrementAndGet);
+    assertEquals(2, (int) flight.execute("key", computed::incrementAndGet));
+  }
+
+  /** Test that a failed computation is reported and not kept. */
+  @Test
+  public void failureIsNotKept() {
+    SingleFlight<String, Integer> flight = new SingleFlight<>(s -> {});
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            flight.execute(
+                "key",
+                () -> {
+                  throw new IllegalStateException("failed");
+                }));
+    assertEquals(0, flight.inFlight());
+    assertEquals(1, (int) flight.execute("key", () -> 1));
+  }
+}